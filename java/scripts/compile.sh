@@ -1,13 +1,18 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+# the flight recorder events (jdk.jfr) need JDK 11 or newer
+export JAVA_HOME=${JAVA_HOME:-/usr/lib/jvm/java-17-openjdk-amd64}
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Hotel.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+# set HOTEL_JFR=<file> to record the hotel events of java/jfr/hotel.jfc into a flight recording
+if [ -n "$HOTEL_JFR" ]; then
+    JFR="-XX:StartFlightRecording=settings=$DIR/../jfr/hotel.jfc,filename=$HOTEL_JFR"
+fi
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Hotel $USER"_DB" $PGPORT $USER
-
+java $JFR -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Hotel $USER"_DB" $PGPORT $USER
@@ -0,0 +1,18 @@
+#!/bin/bash
+# Usage: server.sh [listen port]
+# Serves the menu operations to many terminals from one process (see
+# HotelServer), after compiling like compile.sh.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=${JAVA_HOME:-/usr/lib/jvm/java-17-openjdk-amd64}
+export PATH=$JAVA_HOME/bin:$PATH
+
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+if [ -n "$HOTEL_JFR" ]; then
+    JFR="-XX:StartFlightRecording=settings=$DIR/../jfr/hotel.jfc,filename=$HOTEL_JFR"
+fi
+
+java $JFR -Dserver.workers=${SERVER_WORKERS:-8} \
+     -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar \
+     HotelServer $USER"_DB" $PGPORT $USER ${1:-7070}
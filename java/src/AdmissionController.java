@@ -0,0 +1,477 @@
+/*
+ * Admission Controller
+ * =============================
+ *
+ * Decides which waiting operation of HotelServer gets the next database
+ * connection, so that reports cannot crowd out bookings.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Operations fall into four classes, in order of priority: booking,
+ * availability, interactive and report. Every class has a concurrency limit
+ * and a queue. A free connection goes to the first class, in priority order,
+ * that has an operation waiting and is below its limit.
+ * <p>
+ * The limits adapt to latency (AIMD). An operation that finishes within the
+ * target latency of its class raises the limit of the class by 1/limit, if
+ * the class was using its whole limit. An operation that takes longer, or
+ * has a statement canceled when it runs out of time, multiplies the limit of its own class and of every
+ * lower priority class by admission.backoff, at most once per target
+ * latency. Slow bookings therefore shrink the share of the reports first.
+ * <p>
+ * Every class has a time budget. An operation that runs past it has its
+ * statements canceled (see Deadline). An operation that waits in the queue
+ * longer than the class allows is dropped before it runs. The metrics count
+ * queued, rejected and timed out operations per class, with latency
+ * percentiles of the operations that were not canceled, since the last
+ * report(). main() simulates a run without reports and one with a report
+ * storm, to show what the storm costs the bookings.
+ */
+public class AdmissionController {
+
+    static final int BOOKING = 0;
+    static final int AVAILABILITY = 1;
+    static final int INTERACTIVE = 2;
+    static final int REPORT = 3;
+
+    static final String[] CLASS_NAMES = {"booking", "availability", "interactive", "report"};
+
+    // the menu operations of every class; anything else is interactive
+    static final String[][] CLASS_OPERATIONS = {
+            {"bookRooms", "bookRoomGroup"},
+            {"viewHotels", "viewRooms"},
+            {"CreateUser", "LogIn", "viewRecentBookingsfromCustomer", "updateRoomInfo", "viewRecentUpdates",
+                    "viewRegularCustomers", "placeRoomRepairRequests"},
+            {"viewBookingHistoryofHotel", "viewRoomRepairHistory", "viewOccupancyReport"}
+    };
+
+    // defaults of admission.<class>.targetMillis, .timeoutMillis and .queueMillis
+    private static final long[] TARGET_MILLIS = {100, 200, 500, 5000};
+    private static final long[] TIMEOUT_MILLIS = {2000, 3000, 5000, 30000};
+    private static final long[] QUEUE_MILLIS = {1000, 1000, 2000, 10000};
+
+    // factor applied to a limit when its class, or a more important one, is too slow
+    private static final double BACKOFF = Double.parseDouble(System.getProperty("admission.backoff", "0.7"));
+
+    // waiting operations per class before new ones are rejected
+    private static final int QUEUE = Integer.getInteger("admission.queue", 64);
+
+    // how often operations that waited too long are dropped
+    private static final long SWEEP_MILLIS = 50;
+
+    // how long the operation running on this thread waited in its lane
+    private static final ThreadLocal<Long> QUEUED = new ThreadLocal<Long>();
+
+    /**
+     * An operation waiting for admission.
+     */
+    interface Operation {
+        /**
+         * Runs the operation on a worker, within the time budget of its class.
+         */
+        void run();
+
+        /**
+         * Called instead of run() when the operation waited longer than its
+         * class allows.
+         */
+        void expired();
+    }
+
+    /**
+     * Counters of one class since the last report.
+     */
+    static class Metrics {
+        // latency buckets: exact below 4 us, then four per power of two
+        private static final int BUCKETS = 160;
+
+        final AtomicLong done = new AtomicLong();
+        final AtomicLong queued = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong timedOutWaiting = new AtomicLong();
+        final AtomicLong timedOutRunning = new AtomicLong();
+        final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+
+        void record(long micros) {
+            done.incrementAndGet();
+            latency.incrementAndGet(bucket(micros));
+        }
+
+        static int bucket(long micros) {
+            if (micros < 4)
+                return (int) Math.max(0, micros);
+            int log = 63 - Long.numberOfLeadingZeros(micros);
+            return Math.min(BUCKETS - 1, 4 * (log - 1) + (int) ((micros >>> (log - 2)) & 3));
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < 4)
+                return bucket;
+            int log = bucket / 4 + 1;
+            return ((5L + bucket % 4) << (log - 2)) - 1;
+        }
+
+        /**
+         * @return the latency in microseconds that the given fraction of the
+         * operations stayed within, rounded up to its bucket
+         */
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                total += latency.get(i);
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += latency.get(i);
+                if (seen >= rank && seen > 0)
+                    return upperBound(i);
+            }
+            return 0;
+        }
+
+        void reset() {
+            done.set(0);
+            queued.set(0);
+            rejected.set(0);
+            timedOutWaiting.set(0);
+            timedOutRunning.set(0);
+            for (int i = 0; i < BUCKETS; i++)
+                latency.set(i, 0);
+        }
+    }
+
+    /*
+     * A class of operations: its limit, the operations running and waiting.
+     */
+    private static class Lane {
+        final int priority;
+        final long targetNanos;
+        final long timeoutMillis;
+        final long queueNanos;
+        final double maxLimit;
+        final Metrics metrics = new Metrics();
+        final ArrayDeque<Ticket> waiting = new ArrayDeque<Ticket>();
+        double limit;
+        int running = 0;
+        long decreasedAt = System.nanoTime();
+
+        Lane(int priority, int slots) {
+            String name = "admission." + CLASS_NAMES[priority];
+            this.priority = priority;
+            this.targetNanos = Long.getLong(name + ".targetMillis", TARGET_MILLIS[priority]) * 1000000;
+            this.timeoutMillis = Long.getLong(name + ".timeoutMillis", TIMEOUT_MILLIS[priority]);
+            this.queueNanos = Long.getLong(name + ".queueMillis", QUEUE_MILLIS[priority]) * 1000000;
+            // reports never get more than a quarter of the connections
+            this.maxLimit = Integer.getInteger(name + ".maxLimit", priority == REPORT ? Math.max(1, slots / 4) : slots);
+            this.limit = maxLimit;
+        }
+    }
+
+    private class Ticket implements Runnable {
+        final Lane lane;
+        final Operation operation;
+        final long queuedAt = System.nanoTime();
+
+        Ticket(Lane lane, Operation operation) {
+            this.lane = lane;
+            this.operation = operation;
+        }
+
+        public void run() {
+            long started = System.nanoTime();
+            QUEUED.set(started - queuedAt);
+            Deadline deadline = Deadline.start(scheduler, lane.timeoutMillis);
+            try {
+                operation.run();
+            } finally {
+                QUEUED.remove();
+                finished(this, System.nanoTime() - started, deadline.finish());
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds the operation running on this thread waited to be
+     * admitted, 0 outside of an admitted operation
+     */
+    static long queuedNanos() {
+        Long queued = QUEUED.get();
+        return queued == null ? 0 : queued;
+    }
+
+    private final Lane[] lanes = new Lane[CLASS_NAMES.length];
+    private final Executor workers;
+    private final int slots;
+    private final ScheduledExecutorService scheduler;
+    private int running = 0;
+    private boolean closed = false;
+
+    /**
+     * @param workers runs the admitted operations, never more than slots at a time
+     * @param slots operations allowed to run at the same time, one per connection
+     */
+    public AdmissionController(Executor workers, int slots) {
+        this.workers = workers;
+        this.slots = slots;
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane(i, slots);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "admission-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                dropExpired();
+            }
+        }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the class of a menu operation
+     */
+    static int classOf(String operation) {
+        for (int i = 0; i < CLASS_OPERATIONS.length; i++)
+            if (Arrays.asList(CLASS_OPERATIONS[i]).contains(operation))
+                return i;
+        return INTERACTIVE;
+    }
+
+    /**
+     * Runs the operation as soon as its class may, or queues it.
+     *
+     * @return false when the queue of its class is full, or the controller
+     * closed, and the operation was not taken
+     */
+    public synchronized boolean submit(String operation, Operation task) {
+        Lane lane = lanes[classOf(operation)];
+        if (closed || lane.waiting.size() >= QUEUE) {
+            lane.metrics.rejected.incrementAndGet();
+            return false;
+        }
+        Ticket ticket = new Ticket(lane, task);
+        lane.waiting.add(ticket);
+        dispatch();
+        if (lane.waiting.contains(ticket))
+            lane.metrics.queued.incrementAndGet();
+        return true;
+    }
+
+    /*
+     * Starts waiting operations while there are free slots, the most important class first.
+     */
+    private void dispatch() {
+        while (running < slots && !closed) {
+            Ticket next = null;
+            for (Lane lane : lanes) {
+                if (!lane.waiting.isEmpty() && lane.running < (int) lane.limit) {
+                    next = lane.waiting.poll();
+                    break;
+                }
+            }
+            if (next == null)
+                return;
+            next.lane.running++;
+            running++;
+            workers.execute(next);
+        }
+    }
+
+    private synchronized void finished(Ticket ticket, long nanos, boolean expired) {
+        Lane lane = ticket.lane;
+        boolean atLimit = lane.running >= (int) lane.limit;
+        lane.running--;
+        running--;
+        // a canceled operation did not do its work, its latency is only its budget
+        if (expired)
+            lane.metrics.timedOutRunning.incrementAndGet();
+        else
+            lane.metrics.record(nanos / 1000);
+
+        long now = System.nanoTime();
+        if (expired || nanos > lane.targetNanos) {
+            for (int i = lane.priority; i < lanes.length; i++) {
+                if (now - lanes[i].decreasedAt > lane.targetNanos) {
+                    lanes[i].limit = Math.max(1, lanes[i].limit * BACKOFF);
+                    lanes[i].decreasedAt = now;
+                }
+            }
+        } else if (atLimit) {
+            lane.limit = Math.min(lane.maxLimit, lane.limit + 1 / lane.limit);
+        }
+        dispatch();
+    }
+
+    private void dropExpired() {
+        List<Ticket> dropped = new ArrayList<Ticket>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Lane lane : lanes) {
+                while (!lane.waiting.isEmpty() && (closed || now - lane.waiting.peek().queuedAt > lane.queueNanos)) {
+                    dropped.add(lane.waiting.poll());
+                    lane.metrics.timedOutWaiting.incrementAndGet();
+                }
+            }
+        }
+        for (Ticket ticket : dropped)
+            ticket.operation.expired();
+    }
+
+    /**
+     * @return the metrics of every class since the last report, which are reset;
+     * null when nothing happened
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        boolean any = false;
+        for (Lane lane : lanes) {
+            Metrics m = lane.metrics;
+            any |= m.done.get() > 0 || m.rejected.get() > 0 || m.timedOutWaiting.get() > 0;
+            report.append(String.format("%-12s limit %4.1f, %d running, %d waiting: %d done, p50 %.1f ms, p99 %.1f ms, "
+                            + "%d queued, %d rejected, %d timed out waiting, %d timed out running%n",
+                    CLASS_NAMES[lane.priority], lane.limit, lane.running, lane.waiting.size(), m.done.get(),
+                    m.percentile(0.5) / 1000.0, m.percentile(0.99) / 1000.0, m.queued.get(), m.rejected.get(),
+                    m.timedOutWaiting.get(), m.timedOutRunning.get()));
+            m.reset();
+        }
+        return any ? report.toString() : null;
+    }
+
+    /**
+     * Stops admitting; operations still waiting are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        scheduler.shutdownNow();
+        dropExpired();
+    }
+
+    /**
+     * Simulates load without a database: bookings and reports are submitted at
+     * fixed rates, every operation works for its work time, and the work time
+     * grows with the share of the slots that are busy, as it would on a loaded
+     * database. The work stops when its deadline cancels it, like a canceled
+     * statement. Prints the metrics of the controller and the latency the
+     * clients see, from submit to done, per class.
+     *
+     * @return the latency the clients saw per class; canceled operations count
+     * as timed out running only
+     */
+    static Metrics[] simulate(final int slots, int seconds, int bookingRate, int reportRate,
+                              long bookingMillis, long reportMillis) throws InterruptedException {
+        ThreadFactory daemons = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "admission-bench");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        final AdmissionController admission = new AdmissionController(
+                Executors.newFixedThreadPool(slots, daemons), slots);
+        final Metrics[] seen = new Metrics[CLASS_NAMES.length];
+        for (int i = 0; i < seen.length; i++)
+            seen[i] = new Metrics();
+        final AtomicLong busy = new AtomicLong();
+        ScheduledExecutorService clients = Executors.newScheduledThreadPool(2, daemons);
+
+        final String[] operations = {"bookRooms", "viewOccupancyReport"};
+        final long[] work = {bookingMillis, reportMillis};
+        final int[] rates = {bookingRate, reportRate};
+        for (int k = 0; k < operations.length; k++) {
+            if (rates[k] <= 0)
+                continue;
+            final String operation = operations[k];
+            final long millis = work[k];
+            final Metrics metrics = seen[classOf(operation)];
+            clients.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    final long submitted = System.nanoTime();
+                    admission.submit(operation, new Operation() {
+                        public void run() {
+                            long running = busy.incrementAndGet();
+                            long end = System.nanoTime() + (millis + millis * (running - 1) / slots) * 1000000;
+                            try {
+                                for (long left = end - System.nanoTime(); left > 0; left = end - System.nanoTime()) {
+                                    Deadline.checkpoint();
+                                    Thread.sleep(Math.min(5, Math.max(1, left / 1000000)));
+                                }
+                                metrics.record((System.nanoTime() - submitted) / 1000);
+                            } catch (SQLException e) {
+                                metrics.timedOutRunning.incrementAndGet();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                busy.decrementAndGet();
+                            }
+                        }
+
+                        public void expired() {
+                            metrics.timedOutWaiting.incrementAndGet();
+                        }
+                    });
+                }
+            }, 0, 1000000 / rates[k], TimeUnit.MICROSECONDS);
+        }
+
+        Thread.sleep(seconds * 1000L);
+        clients.shutdownNow();
+        String report = admission.report();
+        System.out.print(report == null ? "" : report);
+        System.out.println("Latency seen by the clients, from submit to done:");
+        for (int i = 0; i < seen.length; i++) {
+            if (seen[i].done.get() > 0 || seen[i].timedOutRunning.get() > 0 || seen[i].timedOutWaiting.get() > 0)
+                System.out.println(String.format("%-12s %d done, p50 %.1f ms, p99 %.1f ms, %d canceled, %d dropped",
+                        CLASS_NAMES[i], seen[i].done.get(), seen[i].percentile(0.5) / 1000.0,
+                        seen[i].percentile(0.99) / 1000.0, seen[i].timedOutRunning.get(),
+                        seen[i].timedOutWaiting.get()));
+        }
+        admission.close();
+        return seen;
+    }
+
+    /**
+     * Runs the simulation twice, with bookings only and with a report storm
+     * next to the same bookings, and compares the booking latency.
+     *
+     * @param args the command line arguments [slots] [seconds] [bookingsPerSecond]
+     *             [reportsPerSecond] [bookingMillis] [reportMillis]
+     */
+    public static void main(String[] args) throws Exception {
+        int slots = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int bookingRate = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int reportRate = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        long bookingMillis = args.length > 4 ? Long.parseLong(args[4]) : 5;
+        long reportMillis = args.length > 5 ? Long.parseLong(args[5]) : 300;
+
+        System.out.println("Bookings only:");
+        Metrics calm = simulate(slots, seconds, bookingRate, 0, bookingMillis, reportMillis)[BOOKING];
+        System.out.println();
+        System.out.println("Bookings and a report storm:");
+        Metrics storm = simulate(slots, seconds, bookingRate, reportRate, bookingMillis, reportMillis)[BOOKING];
+        System.out.println();
+        System.out.println(String.format("booking p99 %.1f ms without reports, %.1f ms with %d reports/s",
+                calm.percentile(0.99) / 1000.0, storm.percentile(0.99) / 1000.0, reportRate));
+    }
+}
@@ -0,0 +1,609 @@
+/*
+ * Booking Analytics
+ * =============================
+ *
+ * In-memory columnar snapshot of RoomBookings, Rooms and RoomRepairs for the
+ * occupancy, revenue and repair downtime reports.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Keeps bookings and repairs as primitive columns and aggregates them with
+ * fork/join, so reports never run a query on the database. Refreshing only
+ * reads the bookings added since the last refresh, from a Watermark per shard
+ * with a trailing window of analytics.window ids, and the repairs from the
+ * oldest one still open on. Bookings are counted at the price they were
+ * charged. A repair keeps its room out of service from its repair date until
+ * its requests are completed; open repairs count until today.
+ * <p>
+ * Deleted bookings and repairs (undone group bookings, hotels moved to
+ * another shard) are logged in ChangeLog by triggers.sql. A refresh that
+ * finds a new deletion there reloads everything, and so does a refresh that
+ * comes more than analytics.reloadMinutes after the last one, as ChangeLog
+ * only keeps hotel.changefeed.retention of changes. Without the change feed
+ * installed every refresh is a full reload. The number of rooms per hotel is
+ * counted again only for the hotels the change feed reports room changes of.
+ */
+public class BookingAnalytics implements ChangeFeed.Listener {
+
+    // rows loaded by the last refresh and aggregated by the reports
+    static final String NEW_BOOKINGS_QUERY =
+            "SELECT RB.bookingID, RB.hotelID, RB.roomNumber, RB.bookingDate - DATE '1970-01-01', " +
+                    "(EXTRACT(YEAR FROM RB.bookingDate) * 12 + EXTRACT(MONTH FROM RB.bookingDate) - 1)::integer, " +
+                    "RB.price FROM RoomBookings RB WHERE RB.bookingID > %d";
+    // the day a repair ended, NULL while a request is open and -1 before it has any request
+    static final String NEW_REPAIRS_QUERY =
+            "SELECT RR.repairID, RR.hotelID, RR.roomNumber, RR.repairDate - DATE '1970-01-01', " +
+                    "(SELECT CASE WHEN COUNT(*) = 0 THEN -1 " +
+                    "WHEN bool_and(RRR.status = 'completed') " +
+                    "THEN MAX(COALESCE(RRR.completedOn::date, RR.repairDate + 1)) - DATE '1970-01-01' END " +
+                    "FROM RoomRepairRequests RRR WHERE RRR.repairID = RR.repairID) " +
+                    "FROM RoomRepairs RR WHERE RR.repairID > %d ORDER BY RR.repairID";
+    static final String DELETIONS_QUERY =
+            "SELECT changeID FROM ChangeLog WHERE changeID > %d AND operation = 'D' " +
+                    "AND tableName IN ('roombookings', 'roomrepairs')";
+    static final String ROOM_COUNT_QUERY =
+            "SELECT hotelID, COUNT(*) FROM Rooms GROUP BY hotelID";
+    static final String HOTEL_ROOM_COUNT_QUERY =
+            "SELECT hotelID, COUNT(*) FROM Rooms WHERE hotelID IN (%s) GROUP BY hotelID";
+
+    // ids below the watermark of a shard that every refresh reads again
+    private static final long WINDOW = Long.getLong("analytics.window", 1000);
+
+    // a refresh this long after the last one may have missed deletions purged from ChangeLog
+    private static final long RELOAD_MILLIS = Long.getLong("analytics.reloadMinutes", 30) * 60000;
+
+    // end day of a repair that is still open, and of one that has no request yet
+    private static final int OPEN = -1;
+    private static final int UNREQUESTED = -2;
+
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    /**
+     * One column set. Readers keep the instance they started with; a refresh
+     * only writes past its size or publishes a copy, so it never changes what
+     * a reader sees.
+     */
+    static final class Columns {
+        final int size;
+        final int[] hotel;      // dense hotel index, see hotelIDs
+        final int[] room;
+        final int[] epochDay;
+        final int[] month;      // year * 12 + month - 1
+        final int[] price;
+
+        Columns(int size, int[] hotel, int[] room, int[] epochDay, int[] month, int[] price) {
+            this.size = size;
+            this.hotel = hotel;
+            this.room = room;
+            this.epochDay = epochDay;
+            this.month = month;
+            this.price = price;
+        }
+
+        static Columns empty() {
+            return new Columns(0, new int[1024], new int[1024], new int[1024], new int[1024], new int[1024]);
+        }
+
+        Columns ensureCapacity(int wanted) {
+            if (wanted <= hotel.length)
+                return this;
+            int capacity = Math.max(wanted, hotel.length * 2);
+            return new Columns(size, Arrays.copyOf(hotel, capacity), Arrays.copyOf(room, capacity),
+                    Arrays.copyOf(epochDay, capacity), Arrays.copyOf(month, capacity), Arrays.copyOf(price, capacity));
+        }
+
+        Columns withSize(int newSize) {
+            return new Columns(newSize, hotel, room, epochDay, month, price);
+        }
+    }
+
+    /**
+     * The repairs of one shard, ordered by repairID. A refresh replaces the
+     * rows from the oldest open repair on, in a copy.
+     */
+    static final class Repairs {
+        final int size;
+        final long[] id;
+        final int[] hotel;      // dense hotel index, see hotelIDs
+        final int[] room;
+        final int[] startDay;
+        final int[] endDay;     // first day back in service, or OPEN or UNREQUESTED
+
+        Repairs(int size, long[] id, int[] hotel, int[] room, int[] startDay, int[] endDay) {
+            this.size = size;
+            this.id = id;
+            this.hotel = hotel;
+            this.room = room;
+            this.startDay = startDay;
+            this.endDay = endDay;
+        }
+
+        static Repairs empty() {
+            return new Repairs(0, new long[0], new int[0], new int[0], new int[0], new int[0]);
+        }
+
+        /**
+         * @return the id below which no repair is read again: none of them is
+         * open, and they are below the window
+         */
+        long bound(long window) {
+            long bound = size == 0 ? -1 : id[size - 1] - window;
+            for (int i = 0; i < size; i++) {
+                if (endDay[i] < 0) {
+                    bound = Math.min(bound, id[i] - 1);
+                    break;
+                }
+            }
+            return bound;
+        }
+
+        /**
+         * @return the number of rows with an id up to bound
+         */
+        int rowsUpTo(long bound) {
+            int i = Arrays.binarySearch(id, 0, size, bound);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+
+        /**
+         * @return the days the repair kept its room out of service within
+         * [from, to), open repairs counting until today
+         */
+        int daysWithin(int i, long from, long to, long today) {
+            long end = endDay[i] >= 0 ? endDay[i] : endDay[i] == OPEN ? today + 1 : startDay[i];
+            return (int) Math.max(0, Math.min(end, to) - Math.max(startDay[i], from));
+        }
+    }
+
+    /**
+     * Aggregated figures of one hotel in one month, or of one room.
+     */
+    public static class Row {
+        public final int hotelID;
+        public final int roomNumber;     // -1 for hotel rows
+        public final int month;          // year * 12 + month - 1
+        public final int rooms;
+        public final long bookings;
+        public final long revenue;
+        public final long repairDays;    // room-days out of service
+
+        Row(int hotelID, int roomNumber, int month, int rooms, long bookings, long revenue, long repairDays) {
+            this.hotelID = hotelID;
+            this.roomNumber = roomNumber;
+            this.month = month;
+            this.rooms = rooms;
+            this.bookings = bookings;
+            this.revenue = revenue;
+            this.repairDays = repairDays;
+        }
+
+        /**
+         * @return booked room-nights over available room-nights of the month
+         */
+        public double occupancy() {
+            long capacity = (long) rooms * daysInMonth(month);
+            return capacity == 0 ? 0 : (double) bookings / capacity;
+        }
+
+        public String monthLabel() {
+            return String.format("%02d-%d", month % 12 + 1, month / 12);
+        }
+    }
+
+    private volatile Columns bookings = Columns.empty();
+    private volatile Repairs[] repairs = new Repairs[0];
+    private final List<Watermark> bookingMarks = new ArrayList<Watermark>();
+    private final List<Watermark> deletionMarks = new ArrayList<Watermark>();
+    private long refreshedAt = 0;
+
+    // hotels whose rooms changed since they were counted; all of them after a resync
+    private final List<ChangeFeed> feeds = new CopyOnWriteArrayList<ChangeFeed>();
+    private final Set<Integer> staleRooms = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile boolean recountRooms = true;
+
+    // dense hotel index <-> hotelID, and the number of rooms of each hotel
+    private final Map<Integer, Integer> hotelIndex = new HashMap<Integer, Integer>();
+    private volatile int[] hotelIDs = new int[0];
+    private volatile int[] roomCounts = new int[0];
+
+    /**
+     * Takes deletions and room changes from the change feed. Without a feed,
+     * every refresh reloads everything.
+     */
+    public void attach(ChangeFeed feed) {
+        feeds.add(feed);
+        feed.addListener(this);
+    }
+
+    private boolean usable() {
+        for (ChangeFeed feed : feeds)
+            if (!feed.isListening())
+                return false;
+        return !feeds.isEmpty();
+    }
+
+    public void onChange(String table, char operation, int hotelID, int roomNumber) {
+        if (table.equals("rooms") && operation != 'U')
+            staleRooms.add(hotelID);
+    }
+
+    public void onResync() {
+        recountRooms = true;
+    }
+
+    static int daysInMonth(int month) {
+        int year = month / 12;
+        int m = month % 12;
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        return m == 1 && leap ? 29 : DAYS_IN_MONTH[m];
+    }
+
+    /**
+     * Parses MM-yyyy into the month numbering of the snapshot.
+     */
+    static int parseMonth(String text) {
+        String[] parts = text.trim().split("-");
+        int m = Integer.parseInt(parts[0]);
+        if (parts.length != 2 || m < 1 || m > 12)
+            throw new IllegalArgumentException("Invalid month '" + text + "', please enter as 'MM-yyyy'.");
+        return Integer.parseInt(parts[1]) * 12 + m - 1;
+    }
+
+    private int indexOf(int hotelID) {
+        Integer index = hotelIndex.get(hotelID);
+        if (index == null) {
+            index = hotelIndex.size();
+            hotelIndex.put(hotelID, index);
+            int[] ids = Arrays.copyOf(hotelIDs, index + 1);
+            ids[index] = hotelID;
+            int[] counts = Arrays.copyOf(roomCounts, index + 1);
+            // readers take hotelIDs first, so the counts must never be the shorter array
+            roomCounts = counts;
+            hotelIDs = ids;
+        }
+        return index;
+    }
+
+    /**
+     * Loads the bookings and repairs added or changed since the last refresh,
+     * or everything again when some were deleted, and counts the rooms of the
+     * hotels whose rooms changed.
+     *
+     * @param esql where to read from
+     * @throws java.sql.SQLException when the snapshot cannot be read
+     */
+    public synchronized void refresh(Hotel esql) throws SQLException {
+        countRooms(esql);
+
+        int shards = esql.shardCount();
+        long now = System.currentTimeMillis();
+        boolean reload = feeds.isEmpty() || now - refreshedAt > RELOAD_MILLIS || repairs.length != shards;
+        if (!feeds.isEmpty()) {
+            // deletions logged from now on are found by the next refresh
+            List<ResultTable> deletions = esql.executeQueriesAndReturnTablesFromAllShards(
+                    queries(DELETIONS_QUERY, deletionMarks, shards));
+            for (int s = 0; s < deletions.size(); s++) {
+                ResultTable part = deletions.get(s);
+                for (int r = 0; r < part.size(); r++)
+                    reload |= deletionMarks.get(s).add(part.getLong(r, 0));
+                deletionMarks.get(s).prune();
+            }
+        }
+        if (reload) {
+            bookings = Columns.empty();
+            bookingMarks.clear();
+            Repairs[] none = new Repairs[shards];
+            Arrays.fill(none, Repairs.empty());
+            repairs = none;
+        }
+        refreshedAt = now;
+
+        List<ResultTable> parts = esql.executeQueriesAndReturnTablesFromAllShards(
+                queries(NEW_BOOKINGS_QUERY, bookingMarks, shards));
+        Columns c = bookings.ensureCapacity(bookings.size + rowCount(parts));
+        int n = c.size;
+        for (int s = 0; s < parts.size(); s++) {
+            ResultTable part = parts.get(s);
+            for (int r = 0; r < part.size(); r++) {
+                if (!bookingMarks.get(s).add(part.getLong(r, 0)))
+                    continue;
+                c.hotel[n] = indexOf(part.getInt(r, 1));
+                c.room[n] = part.getInt(r, 2);
+                c.epochDay[n] = part.getInt(r, 3);
+                c.month[n] = part.getInt(r, 4);
+                c.price[n] = part.getInt(r, 5);
+                n++;
+            }
+            bookingMarks.get(s).prune();
+        }
+        bookings = c.withSize(n);
+
+        // every repair above the bound of its shard is read again and replaces the rows there
+        Repairs[] current = repairs;
+        List<String> queries = new ArrayList<String>();
+        for (Repairs shard : current)
+            queries.add(String.format(NEW_REPAIRS_QUERY, shard.bound(WINDOW)));
+        parts = esql.executeQueriesAndReturnTablesFromAllShards(queries);
+        Repairs[] updated = new Repairs[current.length];
+        for (int s = 0; s < parts.size(); s++) {
+            ResultTable part = parts.get(s);
+            Repairs old = current[s];
+            int kept = old.rowsUpTo(old.bound(WINDOW));
+            int size = kept + part.size();
+            Repairs fresh = new Repairs(size, Arrays.copyOf(old.id, size), Arrays.copyOf(old.hotel, size),
+                    Arrays.copyOf(old.room, size), Arrays.copyOf(old.startDay, size), Arrays.copyOf(old.endDay, size));
+            for (int r = 0; r < part.size(); r++) {
+                int i = kept + r;
+                fresh.id[i] = part.getLong(r, 0);
+                fresh.hotel[i] = indexOf(part.getInt(r, 1));
+                fresh.room[i] = part.getInt(r, 2);
+                fresh.startDay[i] = part.getInt(r, 3);
+                fresh.endDay[i] = part.isNull(r, 4) ? OPEN : part.getInt(r, 4) < 0 ? UNREQUESTED : part.getInt(r, 4);
+            }
+            updated[s] = fresh;
+        }
+        repairs = updated;
+    }
+
+    /*
+     * Counts the rooms of every hotel after a resync or without a running
+     * feed, otherwise only of the hotels the feed reported room changes of.
+     */
+    private void countRooms(Hotel esql) throws SQLException {
+        List<ResultTable> counts;
+        Set<Integer> recounted = null;
+        if (recountRooms || !usable()) {
+            // changes that arrive while counting are counted again next time
+            recountRooms = false;
+            staleRooms.clear();
+            counts = esql.executeQueryAndReturnTablesFromAllShards(ROOM_COUNT_QUERY);
+        } else if (!staleRooms.isEmpty()) {
+            recounted = new HashSet<Integer>(staleRooms);
+            staleRooms.removeAll(recounted);
+            StringBuilder ids = new StringBuilder();
+            for (Integer hotelID : recounted) {
+                if (ids.length() > 0)
+                    ids.append(", ");
+                ids.append(hotelID);
+            }
+            counts = esql.executeQueryAndReturnTablesFromAllShards(String.format(HOTEL_ROOM_COUNT_QUERY, ids));
+        } else {
+            return;
+        }
+        for (ResultTable part : counts)
+            for (int r = 0; r < part.size(); r++)
+                indexOf(part.getInt(r, 0));
+        if (recounted != null)
+            for (Integer hotelID : recounted)
+                indexOf(hotelID);
+        int[] newCounts = recounted == null ? new int[hotelIDs.length] : Arrays.copyOf(roomCounts, hotelIDs.length);
+        if (recounted != null)
+            for (Integer hotelID : recounted)
+                newCounts[hotelIndex.get(hotelID)] = 0;
+        for (ResultTable part : counts)
+            for (int r = 0; r < part.size(); r++)
+                newCounts[hotelIndex.get(part.getInt(r, 0))] = part.getInt(r, 1);
+        roomCounts = newCounts;
+    }
+
+    // the query of every shard, from its own watermark
+    private static List<String> queries(String template, List<Watermark> marks, int shards) {
+        while (marks.size() < shards)
+            marks.add(new Watermark(WINDOW));
+        List<String> queries = new ArrayList<String>();
+        for (int s = 0; s < shards; s++)
+            queries.add(String.format(template, marks.get(s).from()));
+        return queries;
+    }
+
+    private static int rowCount(List<ResultTable> parts) {
+        int rows = 0;
+        for (ResultTable part : parts)
+            rows += part.size();
+        return rows;
+    }
+
+    /**
+     * @return the epoch day of the first day of the month
+     */
+    static long firstDay(int month) {
+        return ResultTable.epochDay(month / 12, month % 12 + 1, 1);
+    }
+
+    private static long today() {
+        Calendar now = Calendar.getInstance();
+        return ResultTable.epochDay(now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * Occupancy, revenue and repair downtime per hotel and month.
+     *
+     * @param hotels the hotels to report, null for the whole chain
+     * @param firstMonth first month of the report, see parseMonth
+     * @param lastMonth last month of the report, inclusive
+     * @return one row per hotel and month, ordered by hotel then month
+     */
+    public Row[] hotelMonthReport(Set<Integer> hotels, int firstMonth, int lastMonth) {
+        int[] ids = hotelIDs;
+        int[] counts = roomCounts;
+        int months = lastMonth - firstMonth + 1;
+        if (months <= 0)
+            return new Row[0];
+
+        // map dense hotel index -> report slot, -1 for hotels not in the report
+        int[] slotOf = new int[ids.length];
+        int slots = 0;
+        for (int h = 0; h < ids.length; h++)
+            slotOf[h] = hotels == null || hotels.contains(ids[h]) ? slots++ : -1;
+
+        Columns b = bookings;
+        long[][] totals = ForkJoinPool.commonPool().invoke(
+                new Aggregate(b, 0, b.size, threshold(b.size), slotOf, slots, firstMonth, months));
+        long[] repairDays = new long[slots * months];
+        long[] monthStart = new long[months + 1];
+        for (int m = 0; m <= months; m++)
+            monthStart[m] = firstDay(firstMonth + m);
+        long today = today();
+        for (Repairs r : repairs) {
+            for (int i = 0; i < r.size; i++) {
+                int slot = r.hotel[i] < slotOf.length ? slotOf[r.hotel[i]] : -1;
+                if (slot < 0)
+                    continue;
+                for (int m = 0; m < months; m++)
+                    repairDays[slot * months + m] += r.daysWithin(i, monthStart[m], monthStart[m + 1], today);
+            }
+        }
+
+        Row[] report = new Row[slots * months];
+        for (int h = 0; h < ids.length; h++) {
+            if (slotOf[h] < 0)
+                continue;
+            for (int m = 0; m < months; m++) {
+                int k = slotOf[h] * months + m;
+                report[k] = new Row(ids[h], -1, firstMonth + m, h < counts.length ? counts[h] : 0, totals[0][k], totals[1][k], repairDays[k]);
+            }
+        }
+        Arrays.sort(report, new Comparator<Row>() {
+            public int compare(Row a, Row b) {
+                return a.hotelID != b.hotelID ? Integer.compare(a.hotelID, b.hotelID) : Integer.compare(a.month, b.month);
+            }
+        });
+        return report;
+    }
+
+    /**
+     * Bookings, revenue and repair downtime of every room of one hotel in one
+     * month.
+     *
+     * @return one row per room that was booked or out of service, ordered by room
+     */
+    public Row[] roomReport(int hotelID, int month) {
+        Integer index = hotelIndex(hotelID);
+        if (index == null)
+            return new Row[0];
+        Map<Integer, long[]> byRoom = new TreeMap<Integer, long[]>();
+        Columns b = bookings;
+        for (int i = 0; i < b.size; i++) {
+            if (b.hotel[i] != index || b.month[i] != month)
+                continue;
+            long[] totals = totalsOf(byRoom, b.room[i]);
+            totals[0]++;
+            totals[1] += b.price[i];
+        }
+        long from = firstDay(month);
+        long to = firstDay(month + 1);
+        long today = today();
+        for (Repairs r : repairs) {
+            for (int i = 0; i < r.size; i++) {
+                if (r.hotel[i] != index)
+                    continue;
+                int days = r.daysWithin(i, from, to, today);
+                if (days > 0)
+                    totalsOf(byRoom, r.room[i])[2] += days;
+            }
+        }
+
+        Row[] report = new Row[byRoom.size()];
+        int k = 0;
+        for (Map.Entry<Integer, long[]> room : byRoom.entrySet()) {
+            long[] totals = room.getValue();
+            report[k++] = new Row(hotelID, room.getKey(), month, 1, totals[0], totals[1], totals[2]);
+        }
+        return report;
+    }
+
+    private synchronized Integer hotelIndex(int hotelID) {
+        return hotelIndex.get(hotelID);
+    }
+
+    private static long[] totalsOf(Map<Integer, long[]> byRoom, int room) {
+        long[] totals = byRoom.get(room);
+        if (totals == null) {
+            totals = new long[3];
+            byRoom.put(room, totals);
+        }
+        return totals;
+    }
+
+    // about four leaves per core, and no leaf smaller than a few thousand rows
+    private static int threshold(int size) {
+        return Math.max(1 << 13, size / (ForkJoinPool.getCommonPoolParallelism() * 4 + 1));
+    }
+
+    /**
+     * Sums bookings and revenue per report slot and month over a range of rows;
+     * ranges are split until they are below the threshold.
+     */
+    private static final class Aggregate extends RecursiveTask<long[][]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Columns c;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final int[] slotOf;
+        private final int slots;
+        private final int firstMonth;
+        private final int months;
+
+        Aggregate(Columns c, int from, int to, int threshold, int[] slotOf, int slots, int firstMonth, int months) {
+            this.c = c;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.slotOf = slotOf;
+            this.slots = slots;
+            this.firstMonth = firstMonth;
+            this.months = months;
+        }
+
+        protected long[][] compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                Aggregate left = new Aggregate(c, from, middle, threshold, slotOf, slots, firstMonth, months);
+                left.fork();
+                long[][] right = new Aggregate(c, middle, to, threshold, slotOf, slots, firstMonth, months).compute();
+                long[][] sum = left.join();
+                for (int k = 0; k < sum[0].length; k++) {
+                    sum[0][k] += right[0][k];
+                    sum[1][k] += right[1][k];
+                }
+                return sum;
+            }
+            long[] bookings = new long[slots * months];
+            long[] revenue = new long[slots * months];
+            for (int i = from; i < to; i++) {
+                int h = c.hotel[i];
+                int slot = h < slotOf.length ? slotOf[h] : -1;
+                int m = c.month[i] - firstMonth;
+                if (slot < 0 || m < 0 || m >= months)
+                    continue;
+                int k = slot * months + m;
+                bookings[k]++;
+                revenue[k] += c.price[i];
+            }
+            return new long[][]{bookings, revenue};
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Change Feed
+ * =============================
+ *
+ * Listens on the hotel_changes channel woken up by the notify_*_change
+ * triggers in triggers.sql and hands every change they record in ChangeLog
+ * to the in-process caches.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Background thread with its own connection that LISTENs for change
+ * notifications. The notifications carry no key, since the pg73 driver cannot
+ * read payloads; a notification only says that ChangeLog has new rows, which
+ * the feed then reads from its Watermark on, which re-reads a trailing window
+ * of ids for changes that committed late. When the connection drops,
+ * notifications sent in the meantime are lost, so listeners are told to
+ * resync once it is back.
+ */
+public class ChangeFeed implements Runnable {
+
+    static final String CHANNEL = "hotel_changes";
+
+    // how often the connection is checked for new notifications
+    private static final long POLL_MILLIS = Long.getLong("hotel.changefeed.pollMillis", 200);
+
+    // longest wait between two reconnection attempts
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    // change ids below the watermark that are read again, for transactions that committed late
+    private static final long WINDOW = Long.getLong("hotel.changefeed.window", 1000);
+
+    // how long changes are kept in ChangeLog
+    private static final String RETENTION = System.getProperty("hotel.changefeed.retention", "1 hour");
+
+    // how often changes older than the retention are deleted
+    private static final long PURGE_MILLIS = 60000;
+
+    /**
+     * Receives the changes published by the database.
+     */
+    public interface Listener {
+        /**
+         * A row changed and has been committed.
+         *
+         * @param table lower case table name
+         * @param operation 'I', 'U' or 'D'
+         * @param hotelID the hotel of the row
+         * @param roomNumber the room of the row, or -1 for the Hotel table
+         */
+        void onChange(String table, char operation, int hotelID, int roomNumber);
+
+        /**
+         * Changes may have been missed; everything cached has to be dropped.
+         */
+        void onResync();
+    }
+
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile boolean running = true;
+    private volatile boolean listening = false;
+
+    // the changes handed out
+    private Watermark watermark;
+
+    public ChangeFeed(String url, String user, String passwd) {
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts the listener thread. It is a daemon, so it does not keep the
+     * process alive.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "change-feed " + url);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return true while notifications are being received, caches must not be
+     * trusted otherwise
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * @return true when the notify triggers and the ChangeLog table of
+     * triggers.sql are installed
+     * @throws java.sql.SQLException when the catalog cannot be read
+     */
+    static boolean isInstalled(Connection connection) throws SQLException {
+        return Hotel.executeQuery(connection,
+                "SELECT 1 FROM pg_proc WHERE proname IN ('notify_hotel_change', 'notify_room_change')") == 2
+                && Hotel.executeQuery(connection, "SELECT 1 FROM pg_class WHERE relname = 'changelog'") == 1;
+    }
+
+    public void run() {
+        long backoff = POLL_MILLIS;
+        while (running) {
+            Connection connection = null;
+            try {
+                connection = DriverManager.getConnection(url, user, passwd);
+                Hotel.executeUpdate(connection, "LISTEN " + CHANNEL);
+                // anything that changed while we were not listening is unknown
+                watermark = new Watermark(WINDOW);
+                ResultTable visible = Hotel.executeQueryAndReturnTable(connection,
+                        "SELECT changeID FROM ChangeLog WHERE changeID > (SELECT MAX(changeID) FROM ChangeLog) - " + WINDOW);
+                for (int row = 0; row < visible.size(); row++)
+                    watermark.add(visible.getLong(row, 0));
+                resync();
+                listening = true;
+                backoff = POLL_MILLIS;
+                long purged = System.currentTimeMillis();
+                while (running) {
+                    // a round trip lets the driver read notifications that arrived in between
+                    Hotel.executeQuery(connection, "SELECT 1");
+                    PGNotification[] notifications = ((PGConnection) connection).getNotifications();
+                    if (notifications != null && notifications.length > 0)
+                        readChanges(connection);
+                    if (System.currentTimeMillis() - purged > PURGE_MILLIS) {
+                        Hotel.executeUpdate(connection,
+                                "DELETE FROM ChangeLog WHERE changedOn < now() - interval '" + RETENTION + "'");
+                        purged = System.currentTimeMillis();
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                }
+            } catch (SQLException e) {
+                System.err.println("Change feed lost its connection: " + e.getMessage());
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                listening = false;
+                try {
+                    if (connection != null)
+                        connection.close();
+                } catch (SQLException e) {
+                    // ignored.
+                }
+            }
+            if (running) {
+                // nothing is known about the database until we listen again
+                resync();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /*
+     * Hands out the changes committed since the last call, including those
+     * with ids below the watermark that were not visible then.
+     */
+    private void readChanges(Connection connection) throws SQLException {
+        ResultTable changes = Hotel.executeQueryAndReturnTable(connection, String.format(
+                "SELECT changeID, tableName, operation, hotelID, roomNumber FROM ChangeLog "
+                        + "WHERE changeID > %d ORDER BY changeID", watermark.from()));
+        for (int row = 0; row < changes.size(); row++) {
+            if (!watermark.add(changes.getLong(row, 0)))
+                continue;
+            int roomNumber = changes.isNull(row, 4) ? -1 : changes.getInt(row, 4);
+            for (Listener listener : listeners)
+                listener.onChange(changes.getString(row, 1), changes.getString(row, 2).charAt(0),
+                        changes.getInt(row, 3), roomNumber);
+        }
+        watermark.prune();
+    }
+
+    private void resync() {
+        for (Listener listener : listeners)
+            listener.onResync();
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * Data Generator
+ * =============================
+ *
+ * Generates the tables of create_tables.sql at any scale, either as the
+ * data/*.csv files or straight into the database.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deterministic synthetic data: the same scale and seed always give the same
+ * rows, however many threads generate them. Every table is cut into chunks
+ * (a range of users, or of hotels for everything that belongs to a hotel),
+ * each chunk has its own random stream, and the chunks are generated in
+ * parallel but written in order. The number of rows of every hotel is fixed
+ * up front, so a chunk knows its first bookingID without waiting for the
+ * chunks before it.
+ *
+ * At scale 1 there are 100,000 users, 2,000 hotels of 10 to 60 rooms and
+ * about 1,000,000 bookings; everything grows linearly with the scale.
+ * Hotels lie around cities in the 0-100 coordinate square, some hotels and
+ * some rooms of a hotel are much more popular than others (Zipf), and
+ * bookings follow the season: summer and December are busy, and so are
+ * Fridays and Saturdays.
+ */
+public class DataGenerator {
+
+    // bookings and repairs fall between these days
+    private static final long FIRST_DAY = ResultTable.epochDay(2015, 1, 1);
+    private static final int DAYS = (int) (ResultTable.epochDay(2025, 1, 1) - FIRST_DAY);
+
+    // Zipf exponents of hotel and room popularity
+    private static final double HOTEL_SKEW = Double.parseDouble(System.getProperty("generator.hotelSkew", "0.6"));
+    private static final double ROOM_SKEW = Double.parseDouble(System.getProperty("generator.roomSkew", "1.0"));
+
+    // share of a hotel's room nights that can be booked at most
+    private static final double MAX_OCCUPANCY = 0.5;
+
+    // rows per chunk
+    private static final int USERS_PER_CHUNK = 50000;
+    private static final int HOTELS_PER_CHUNK = 100;
+
+    // random streams; a chunk or hotel gets the stream of (kind, index)
+    private static final int CITY = 1;
+    private static final int HOTEL = 2;
+    private static final int USER_CHUNK = 3;
+    private static final int ROOM_CHUNK = 4;
+    private static final int BOOKING_CHUNK = 5;
+    private static final int REPAIR_CHUNK = 6;
+    private static final int UPDATE_CHUNK = 7;
+    private static final int PERMUTATION = 8;
+    private static final int COMPANY = 9;
+    private static final int HOTEL_ROW = 10;
+    private static final int REQUEST_CHUNK = 11;
+
+    // repairs dated within this many days of the last day may still be pending
+    private static final int OPEN_REPAIR_DAYS = 30;
+
+    private static final String[] FIRST_NAMES = {
+            "Amy", "Bob", "Carla", "David", "Emma", "Frank", "Grace", "Henry", "Irene", "Jack",
+            "Karen", "Leo", "Maria", "Nathan", "Olivia", "Paul", "Quinn", "Rosa", "Sam", "Tina",
+            "Umar", "Vera", "Will", "Xenia", "Yusuf", "Zoe"};
+    private static final String[] LAST_NAMES = {
+            "Johns", "Braun", "Garcia", "Smith", "Nguyen", "Kim", "Patel", "Lopez", "Chen", "Miller",
+            "Davis", "Wilson", "Moore", "Taylor", "Clark", "Lewis", "Young", "Hall", "Allen", "King"};
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mi", "ra", "sen", "to", "vi", "na", "por", "el", "da", "qu", "ber", "sa", "lin", "ve"};
+
+    final long seed;
+    final int users;
+    final int managers;
+    final int hotels;
+    final int companies;
+    final int cities;
+    final long targetBookings;
+
+    // per hotel, index 0 is hotelID 1
+    private final int[] roomsOf;
+    private final int[] managerOf;
+    private final int[] cityOf;
+    // rows of the hotels before hotelID i + 1, so the IDs of a chunk start at ...Before[first] + 1
+    private final long[] bookingsBefore;
+    private final long[] repairsBefore;
+    private final long[] updatesBefore;
+
+    private final double[] cityCdf;
+    private final double[] cityX;
+    private final double[] cityY;
+    private final int[] cityPrice;
+
+    // cumulative booking weight of each day after FIRST_DAY
+    private final double[] dayCdf = new double[DAYS];
+    private final String[] dayText = new String[DAYS];
+
+    public DataGenerator(double scale, long seed) {
+        this.seed = seed;
+        this.hotels = Math.max(20, (int) Math.round(2000 * scale));
+        this.managers = Math.max(1, hotels / 5);
+        this.users = Math.max(managers + 100, (int) Math.round(100000 * scale));
+        this.companies = Math.max(5, hotels / 100);
+        this.cities = Math.max(1, hotels / 100);
+        this.targetBookings = Math.round(1000000 * scale);
+
+        cityX = new double[cities];
+        cityY = new double[cities];
+        cityPrice = new int[cities];
+        for (int c = 0; c < cities; c++) {
+            SplittableRandom random = random(CITY, c);
+            cityX[c] = 5 + random.nextDouble() * 90;
+            cityY[c] = 5 + random.nextDouble() * 90;
+            cityPrice[c] = 60 + random.nextInt(340);
+        }
+        cityCdf = zipfCdf(cities, 1.0);
+
+        for (int d = 0; d < DAYS; d++) {
+            String iso = ResultTable.formatDate(FIRST_DAY + d);
+            int month = Integer.parseInt(iso.substring(5, 7));
+            int weekday = (int) ((FIRST_DAY + d + 4) % 7); // 1970-01-01 was a Thursday
+            double weight = 1 + 0.02 * (d / 365);
+            if (month >= 6 && month <= 8)
+                weight *= 1.8;
+            else if (month == 12)
+                weight *= 1.5;
+            else if (month == 1 || month == 2 || month == 11)
+                weight *= 0.7;
+            if (weekday == 5 || weekday == 6)
+                weight *= 1.3;
+            dayCdf[d] = (d == 0 ? 0 : dayCdf[d - 1]) + weight;
+            dayText[d] = mdy(iso);
+        }
+
+        roomsOf = new int[hotels];
+        managerOf = new int[hotels];
+        cityOf = new int[hotels];
+        long totalRooms = 0;
+        for (int h = 0; h < hotels; h++) {
+            SplittableRandom random = random(HOTEL, h);
+            roomsOf[h] = 10 + random.nextInt(51);
+            managerOf[h] = 2 + random.nextInt(managers);
+            cityOf[h] = sample(cityCdf, random);
+            totalRooms += roomsOf[h];
+        }
+
+        // hotel popularity follows Zipf over a random order of the hotels
+        int[] rank = permutation(hotels, random(PERMUTATION, 0));
+        double[] weight = new double[hotels];
+        double totalWeight = 0;
+        for (int h = 0; h < hotels; h++)
+            totalWeight += weight[h] = Math.pow(rank[h] + 1, -HOTEL_SKEW);
+
+        bookingsBefore = new long[hotels + 1];
+        repairsBefore = new long[hotels + 1];
+        updatesBefore = new long[hotels + 1];
+        long targetRepairs = Math.max(10, targetBookings / 50);
+        for (int h = 0; h < hotels; h++) {
+            long cap = (long) (roomsOf[h] * (long) DAYS * MAX_OCCUPANCY);
+            long bookings = Math.min(cap, Math.round(targetBookings * weight[h] / totalWeight));
+            bookingsBefore[h + 1] = bookingsBefore[h] + bookings;
+            repairsBefore[h + 1] = repairsBefore[h] + Math.round(targetRepairs * (double) roomsOf[h] / totalRooms);
+            updatesBefore[h + 1] = updatesBefore[h] + roomsOf[h] / 4;
+        }
+    }
+
+    // an independent, reproducible stream for every chunk or hotel
+    private SplittableRandom random(int kind, long index) {
+        return new SplittableRandom(mix(seed ^ mix(((long) kind << 40) ^ index)));
+    }
+
+    // murmur3 fmix64
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static int[] permutation(int n, SplittableRandom random) {
+        int[] p = new int[n];
+        for (int i = 0; i < n; i++)
+            p[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = p[i];
+            p[i] = p[j];
+            p[j] = t;
+        }
+        return p;
+    }
+
+    private static double[] zipfCdf(int n, double skew) {
+        double[] cdf = new double[n];
+        for (int i = 0; i < n; i++)
+            cdf[i] = (i == 0 ? 0 : cdf[i - 1]) + Math.pow(i + 1, -skew);
+        return cdf;
+    }
+
+    // index i with probability proportional to cdf[i] - cdf[i - 1]
+    private static int sample(double[] cdf, SplittableRandom random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble() * cdf[cdf.length - 1]);
+        return i >= 0 ? i : Math.min(-i - 1, cdf.length - 1);
+    }
+
+    private static String mdy(String iso) {
+        return Integer.parseInt(iso.substring(5, 7)) + "/" + Integer.parseInt(iso.substring(8, 10)) + "/" + iso.substring(0, 4);
+    }
+
+    private static String word(SplittableRandom random, int syllables) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < syllables; i++)
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        return word.toString();
+    }
+
+    private int firstHotel(int chunk) {
+        return chunk * HOTELS_PER_CHUNK;
+    }
+
+    private int lastHotel(int chunk) {
+        return Math.min(hotels, (chunk + 1) * HOTELS_PER_CHUNK);
+    }
+
+    private int hotelChunks() {
+        return (hotels + HOTELS_PER_CHUNK - 1) / HOTELS_PER_CHUNK;
+    }
+
+    /**
+     * One table of the schema: where it goes and how to generate a chunk.
+     */
+    abstract class Table {
+        final String file;
+        final String copyTarget;
+        final String header;
+
+        Table(String file, String copyTarget, String header) {
+            this.file = file;
+            this.copyTarget = copyTarget;
+            this.header = header;
+        }
+
+        abstract int chunks();
+
+        abstract void generate(int chunk, StringBuilder out);
+    }
+
+    /**
+     * @return the tables in load order, referenced tables first
+     */
+    Table[] tables() {
+        return new Table[]{
+                new Table("users.csv", "Users", "userID,name,password,userType") {
+                    int chunks() {
+                        return (users + USERS_PER_CHUNK - 1) / USERS_PER_CHUNK;
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        SplittableRandom random = random(USER_CHUNK, chunk);
+                        int last = Math.min(users, (chunk + 1) * USERS_PER_CHUNK);
+                        for (int id = chunk * USERS_PER_CHUNK + 1; id <= last; id++) {
+                            String type = id == 1 ? "admin" : id <= managers + 1 ? "manager" : "customer";
+                            out.append(id).append(',')
+                                    .append(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]).append('.')
+                                    .append(LAST_NAMES[random.nextInt(LAST_NAMES.length)]).append(',');
+                            for (int i = 0; i < 8; i++)
+                                out.append((char) ('a' + random.nextInt(26)));
+                            out.append(',').append(type).append('\n');
+                        }
+                    }
+                },
+                new Table("hotels.csv", "Hotel", "hotelID,hotelName,latitude,longitude,dateEstablished,managerUserID") {
+                    int chunks() {
+                        return hotelChunks();
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        for (int h = firstHotel(chunk); h < lastHotel(chunk); h++) {
+                            SplittableRandom random = random(HOTEL_ROW, h);
+                            int city = cityOf[h];
+                            double latitude = clamp(cityX[city] + 1.5 * gaussian(random));
+                            double longitude = clamp(cityY[city] + 1.5 * gaussian(random));
+                            long established = ResultTable.epochDay(1900, 1, 1) + random.nextInt(365 * 114);
+                            out.append(h + 1).append(',').append(word(random, 3)).append(',')
+                                    .append(String.format(Locale.ROOT, "%.6f,%.6f,", latitude, longitude))
+                                    .append(mdy(ResultTable.formatDate(established))).append(',')
+                                    .append(managerOf[h]).append('\n');
+                        }
+                    }
+                },
+                new Table("rooms.csv", "Rooms", "hotelID,roomNumber,price,imageURL") {
+                    int chunks() {
+                        return hotelChunks();
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        SplittableRandom random = random(ROOM_CHUNK, chunk);
+                        for (int h = firstHotel(chunk); h < lastHotel(chunk); h++) {
+                            int base = cityPrice[cityOf[h]] + random.nextInt(100);
+                            for (int room = 1; room <= roomsOf[h]; room++) {
+                                int price = (base + random.nextInt(base)) / 5 * 5;
+                                out.append(h + 1).append(',').append(room).append(',').append(price)
+                                        .append(",img/").append(h + 1).append('/').append(room).append(".jpg\n");
+                            }
+                        }
+                    }
+                },
+                new Table("company.csv", "MaintenanceCompany", "companyID,name,address") {
+                    int chunks() {
+                        return 1;
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        SplittableRandom random = random(COMPANY, 0);
+                        for (int id = 1; id <= companies; id++)
+                            out.append(id).append(',').append(word(random, 2)).append("-com,")
+                                    .append(word(random, 2)).append('\n');
+                    }
+                },
+                new Table("bookings.csv", "RoomBookings (bookingID, customerID, hotelID, roomNumber, bookingDate)",
+                        "bookingID,customerID,hotelID,roomNumber,bookingDate") {
+                    int chunks() {
+                        return hotelChunks();
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        SplittableRandom random = random(BOOKING_CHUNK, chunk);
+                        int firstCustomer = managers + 2;
+                        int customers = users - firstCustomer + 1;
+                        int regulars = Math.max(1, customers / 50);
+                        long bookingID = bookingsBefore[firstHotel(chunk)];
+                        for (int h = firstHotel(chunk); h < lastHotel(chunk); h++) {
+                            int rooms = roomsOf[h];
+                            // room popularity follows Zipf over a random order of the rooms
+                            int[] roomOrder = permutation(rooms, random);
+                            double[] roomCdf = zipfCdf(rooms, ROOM_SKEW);
+                            // (room, day) pairs already booked, the schema allows one booking per night
+                            BitSet taken = new BitSet(rooms * DAYS);
+                            for (long n = bookingsBefore[h]; n < bookingsBefore[h + 1]; n++) {
+                                int key = 0;
+                                boolean free = false;
+                                for (int attempt = 0; attempt < 4 && !free; attempt++) {
+                                    key = roomOrder[sample(roomCdf, random)] * DAYS + sample(dayCdf, random);
+                                    free = !taken.get(key);
+                                }
+                                if (!free) {
+                                    // a busy room: take its next free night
+                                    key = taken.nextClearBit(key);
+                                    if (key >= rooms * DAYS)
+                                        key = taken.nextClearBit(0);
+                                }
+                                taken.set(key);
+                                // a few regulars make a good part of the bookings
+                                int customer = firstCustomer
+                                        + (random.nextInt(10) < 3 ? random.nextInt(regulars) : random.nextInt(customers));
+                                out.append(++bookingID).append(',').append(customer).append(',').append(h + 1)
+                                        .append(',').append(key / DAYS + 1).append(',').append(dayText[key % DAYS])
+                                        .append('\n');
+                            }
+                        }
+                    }
+                },
+                new Table("roomRepairs.csv", "RoomRepairs", "repairID,companyID,hotelID,roomNumber,repairDate") {
+                    int chunks() {
+                        return hotelChunks();
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        SplittableRandom random = random(REPAIR_CHUNK, chunk);
+                        for (int h = firstHotel(chunk); h < lastHotel(chunk); h++)
+                            for (long id = repairsBefore[h] + 1; id <= repairsBefore[h + 1]; id++)
+                                out.append(id).append(',').append(1 + random.nextInt(companies)).append(',')
+                                        .append(h + 1).append(',').append(1 + random.nextInt(roomsOf[h])).append(',')
+                                        .append(dayText[random.nextInt(DAYS)]).append('\n');
+                    }
+                },
+                new Table("roomRepairRequests.csv",
+                        "RoomRepairRequests (requestNumber, managerID, repairID, status, completedOn)",
+                        "requestNumber,managerID,repairID,status,completedOn") {
+                    int chunks() {
+                        return hotelChunks();
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        // replays the stream of roomRepairs.csv to learn the date of every repair
+                        SplittableRandom repairs = random(REPAIR_CHUNK, chunk);
+                        SplittableRandom random = random(REQUEST_CHUNK, chunk);
+                        // every repair was requested by the manager of its hotel; an open request takes
+                        // its room out of service, so all but some recent ones are completed
+                        for (int h = firstHotel(chunk); h < lastHotel(chunk); h++) {
+                            for (long id = repairsBefore[h] + 1; id <= repairsBefore[h + 1]; id++) {
+                                repairs.nextInt(companies);
+                                repairs.nextInt(roomsOf[h]);
+                                int day = repairs.nextInt(DAYS);
+                                out.append(id).append(',').append(managerOf[h]).append(',').append(id).append(',');
+                                if (day >= DAYS - OPEN_REPAIR_DAYS && random.nextBoolean()) {
+                                    out.append("pending,\n");
+                                } else {
+                                    int second = random.nextInt(86400);
+                                    out.append("completed,")
+                                            .append(ResultTable.formatDate(FIRST_DAY + day + 1 + random.nextInt(14)))
+                                            .append(String.format(" %02d:%02d:%02d\n", second / 3600, second / 60 % 60, second % 60));
+                                }
+                            }
+                        }
+                    }
+                },
+                new Table("roomUpdatesLog.csv", "RoomUpdatesLog", "updateNumber,managerID,hotelID,roomNumber,updatedOn") {
+                    int chunks() {
+                        return hotelChunks();
+                    }
+
+                    void generate(int chunk, StringBuilder out) {
+                        SplittableRandom random = random(UPDATE_CHUNK, chunk);
+                        for (int h = firstHotel(chunk); h < lastHotel(chunk); h++) {
+                            for (long id = updatesBefore[h] + 1; id <= updatesBefore[h + 1]; id++) {
+                                int second = random.nextInt(86400);
+                                out.append(id).append(',').append(managerOf[h]).append(',').append(h + 1).append(',')
+                                        .append(1 + random.nextInt(roomsOf[h])).append(',')
+                                        .append(ResultTable.formatDate(FIRST_DAY + random.nextInt(DAYS)))
+                                        .append(String.format(" %02d:%02d:%02d\n", second / 3600, second / 60 % 60, second % 60));
+                            }
+                        }
+                    }
+                }
+        };
+    }
+
+    private static double gaussian(SplittableRandom random) {
+        // Box-Muller, SplittableRandom has no nextGaussian
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    private static double clamp(double coordinate) {
+        return Math.max(0, Math.min(99.999999, coordinate));
+    }
+
+    // seeds the price history and charges the loaded bookings, as loading runs without triggers.sql
+    static final String PRICES_SQL =
+            "INSERT INTO RoomPriceHistory (hotelID, roomNumber, effectiveOn, price) " +
+                    "SELECT hotelID, roomNumber, CURRENT_DATE, price FROM Rooms " +
+                    "ON CONFLICT (hotelID, roomNumber, effectiveOn) DO NOTHING;\n" +
+                    "UPDATE RoomBookings RB SET price = R.price FROM Rooms R " +
+                    "WHERE R.hotelID = RB.hotelID AND R.roomNumber = RB.roomNumber AND RB.price IS NULL;\n";
+
+    /**
+     * @return statements that move every sequence past the generated IDs, the
+     * ones of the serial columns and those of triggers.sql when it is installed
+     */
+    String sequencesSQL() {
+        String[][] sequences = {
+                {"users_userid_seq", "userid_seq", String.valueOf(users)},
+                {"roombookings_bookingid_seq", "bookingid_seq", String.valueOf(bookingsBefore[hotels])},
+                {"roomrepairs_repairid_seq", "repairid_seq", String.valueOf(repairsBefore[hotels])},
+                {"roomrepairrequests_requestnumber_seq", "requestnumber_seq", String.valueOf(repairsBefore[hotels])},
+                {"roomupdateslog_updatenumber_seq", "updatenumber_seq", String.valueOf(updatesBefore[hotels])}
+        };
+        StringBuilder sql = new StringBuilder();
+        for (String[] sequence : sequences)
+            sql.append(String.format("SELECT setval(oid::regclass, %s) FROM pg_class WHERE relname IN ('%s', '%s');\n",
+                    Math.max(1, Long.parseLong(sequence[2])), sequence[0], sequence[1]));
+        return sql.toString();
+    }
+
+    /**
+     * Writes one table: the header, then its chunks in order. Up to two
+     * chunks per thread are generated ahead of the writer.
+     */
+    void write(final Table table, ExecutorService pool, int threads, OutputStream out)
+            throws IOException, InterruptedException {
+        out.write((table.header + "\n").getBytes(StandardCharsets.US_ASCII));
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        int next = 0;
+        while (next < table.chunks() || !pending.isEmpty()) {
+            while (next < table.chunks() && pending.size() < 2 * threads) {
+                final int chunk = next++;
+                pending.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call() {
+                        StringBuilder rows = new StringBuilder(1 << 16);
+                        table.generate(chunk, rows);
+                        return rows.toString().getBytes(StandardCharsets.US_ASCII);
+                    }
+                }));
+            }
+            try {
+                out.write(pending.poll().get());
+            } catch (ExecutionException e) {
+                throw new IOException("Generating " + table.file + " failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Usage: DataGenerator &lt;scale&gt; csv &lt;directory&gt;
+     * or DataGenerator &lt;scale&gt; copy &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+     * <p>
+     * csv writes the files of data/ and a sequences.sql to run after loading
+     * them. copy streams every table into empty tables of a database through
+     * psql, as the JDBC driver has no COPY support, moves the sequences and
+     * prices the bookings.
+     * The seed is the system property generator.seed.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3 || (args[1].equals("copy") && args.length < 5)) {
+            System.err.println("Usage: java [-Dgenerator.seed=42] DataGenerator <scale> csv <directory>");
+            System.err.println("       java [-Dgenerator.seed=42] DataGenerator <scale> copy <dbname> <port> <user>");
+            return;
+        }
+        DataGenerator generator = new DataGenerator(Double.parseDouble(args[0]), Long.getLong("generator.seed", 42));
+        boolean copy = args[1].equals("copy");
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            File directory = new File(args[2]);
+            if (!copy)
+                directory.mkdirs();
+            for (Table table : generator.tables()) {
+                long start = System.nanoTime();
+                if (copy) {
+                    Process psql = Psql.run(args[2], args[3], args[4],
+                            "\\copy " + table.copyTarget + " FROM pstdin WITH DELIMITER ',' CSV HEADER");
+                    OutputStream out = new BufferedOutputStream(psql.getOutputStream(), 1 << 16);
+                    generator.write(table, pool, threads, out);
+                    out.close();
+                    Psql.await(psql, "loading " + table.copyTarget);
+                } else {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(directory, table.file)), 1 << 16);
+                    try {
+                        generator.write(table, pool, threads, out);
+                    } finally {
+                        out.close();
+                    }
+                }
+                System.out.println(String.format("%-24s %6d ms", table.file, (System.nanoTime() - start) / 1000000));
+            }
+            if (copy) {
+                Psql.await(Psql.run(args[2], args[3], args[4], generator.sequencesSQL()), "moving the sequences");
+                Psql.await(Psql.run(args[2], args[3], args[4], PRICES_SQL), "pricing the bookings");
+            } else {
+                OutputStream out = new FileOutputStream(new File(directory, "sequences.sql"));
+                out.write(generator.sequencesSQL().getBytes(StandardCharsets.US_ASCII));
+                out.close();
+            }
+            System.out.println(generator.users + " users, " + generator.hotels + " hotels, "
+                    + generator.bookingsBefore[generator.hotels] + " bookings");
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
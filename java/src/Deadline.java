@@ -0,0 +1,319 @@
+/*
+ * Deadline
+ * =============================
+ *
+ * Time budget of one operation; the statements it sends are canceled when
+ * the budget runs out.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of the running operation is kept per thread. The execute
+ * methods of Hotel hand every statement they create to watch() and call
+ * unwatch() when it is done, so that a timer can cancel what is still running
+ * on the database when the budget is over; statements the operation tries to
+ * send after that fail at once. Threads that work for the operation, like the
+ * scatter threads of ShardRouter, join its deadline. Without a deadline, the
+ * methods do nothing.
+ * <p>
+ * The pg73 driver cancels whatever runs on the connection, not one statement.
+ * So nothing is canceled between beginCommit() and endCommit(), and a
+ * connection a cancel was sent to is only reused once that cancel was seen to
+ * end a statement, or a probe statement ran past the time a late cancel takes
+ * to arrive. finish(Runnable) runs the probes on a thread of its own and says
+ * when the connections may be reused, so the worker does not wait for them.
+ */
+class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+    // the statement this thread is waiting for, if any
+    private static final ThreadLocal<Statement> RUNNING = new ThreadLocal<Statement>();
+
+    // how long a probe statement waits for a cancel that was sent but not seen
+    private static final long SETTLE_MILLIS = Long.getLong("deadline.settleMillis", 100);
+
+    // runs the probes of finish(Runnable)
+    private static final ExecutorService SETTLER = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "deadline-settle");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Set<Statement> running = new LinkedHashSet<Statement>();
+    private final Set<Statement> canceled = new HashSet<Statement>();
+    // connections a cancel was sent to that no statement failed from yet
+    private final Set<Connection> pending = new LinkedHashSet<Connection>();
+    private final long millis;
+    private ScheduledFuture<?> timer;
+    private int committing = 0;
+    private boolean expired = false;
+    private boolean interrupted = false;
+    private boolean finished = false;
+
+    private Deadline(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * Gives the operation about to run on this thread a time budget.
+     *
+     * @param scheduler runs the cancellation when the budget is over
+     * @param millis the budget
+     * @return the deadline, to be finished when the operation is done
+     */
+    static Deadline start(ScheduledExecutorService scheduler, long millis) {
+        final Deadline deadline = new Deadline(millis);
+        deadline.timer = scheduler.schedule(new Runnable() {
+            public void run() {
+                deadline.expire();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return the deadline of the operation running on this thread, or null
+     */
+    static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes this thread work under the deadline of another one, or under none.
+     */
+    static void join(Deadline deadline) {
+        if (deadline == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(deadline);
+    }
+
+    /**
+     * Registers a statement about to be sent by the operation on this thread.
+     *
+     * @throws java.sql.SQLException when the operation is already over its budget
+     */
+    static void watch(Statement statement) throws SQLException {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null)
+            return;
+        synchronized (deadline) {
+            if (deadline.expired && deadline.committing == 0) {
+                deadline.interrupted = true;
+                statement.close();
+                throw new SQLException("Canceled: the operation took longer than " + deadline.millis + " ms");
+            }
+            deadline.running.add(statement);
+        }
+        RUNNING.set(statement);
+    }
+
+    /**
+     * For work of the operation on this thread that sends no statement: fails
+     * the way watch() does once the operation is over its budget.
+     *
+     * @throws java.sql.SQLException when the operation is over its budget
+     */
+    static void checkpoint() throws SQLException {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null)
+            return;
+        synchronized (deadline) {
+            if (deadline.expired && deadline.committing == 0) {
+                deadline.interrupted = true;
+                throw new SQLException("Canceled: the operation took longer than " + deadline.millis + " ms");
+            }
+        }
+    }
+
+    /**
+     * Records that the statement this thread waited for failed. When the
+     * deadline had canceled it, the operation was interrupted.
+     */
+    static void failed(SQLException e) {
+        Deadline deadline = CURRENT.get();
+        Statement statement = RUNNING.get();
+        if (deadline == null || statement == null)
+            return;
+        synchronized (deadline) {
+            if (!deadline.canceled.contains(statement))
+                return;
+            deadline.interrupted = true;
+            // query_canceled: the cancel was used up on this statement
+            if ("57014".equals(e.getSQLState())) {
+                try {
+                    deadline.pending.remove(statement.getConnection());
+                } catch (SQLException closed) {
+                    // the connection is probed in finish()
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the statement this thread waited for; it is not canceled any more.
+     */
+    static void unwatch() {
+        Deadline deadline = CURRENT.get();
+        Statement statement = RUNNING.get();
+        RUNNING.remove();
+        if (deadline == null || statement == null)
+            return;
+        synchronized (deadline) {
+            deadline.running.remove(statement);
+            deadline.canceled.remove(statement);
+        }
+    }
+
+    /**
+     * Starts a commit that must not be canceled half way, such as the commits
+     * of a group booking on several shards. Until endCommit(), the deadline
+     * cancels nothing and lets statements through, so a failed commit can
+     * still be undone.
+     *
+     * @return false when the operation is already over its budget, or a
+     * cancel may still arrive; it should then roll back instead
+     */
+    static boolean beginCommit() {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null)
+            return true;
+        synchronized (deadline) {
+            if (deadline.expired) {
+                deadline.interrupted = true;
+                return false;
+            }
+            deadline.committing++;
+            return true;
+        }
+    }
+
+    /**
+     * Ends what beginCommit() started.
+     */
+    static void endCommit() {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null)
+            return;
+        synchronized (deadline) {
+            deadline.committing--;
+        }
+    }
+
+    private synchronized void expire() {
+        if (finished)
+            return;
+        expired = true;
+        if (committing > 0)
+            return;
+        for (Statement statement : running) {
+            try {
+                pending.add(statement.getConnection());
+                canceled.add(statement);
+                statement.cancel();
+            } catch (SQLException e) {
+                // it may have finished in the meantime
+            }
+        }
+    }
+
+    /**
+     * Ends the deadline; no statement is canceled after this returns, and no
+     * cancel that was sent is still on its way. Can be called again, which
+     * returns the same.
+     *
+     * @return true when a statement of the operation was canceled, or refused
+     * because the operation ran over its budget
+     */
+    boolean finish() {
+        List<Connection> probe = end();
+        for (Connection connection : probe)
+            settle(connection);
+        return interrupted();
+    }
+
+    /**
+     * Ends the deadline; no statement is canceled after this returns. The
+     * connections of the operation may only be reused once settled has run:
+     * at once when no cancel is on its way, otherwise on another thread after
+     * the connections were probed. Called again, runs settled at once.
+     *
+     * @return true when a statement of the operation was canceled, or refused
+     * because the operation ran over its budget
+     */
+    boolean finish(final Runnable settled) {
+        final List<Connection> probe = end();
+        if (probe.isEmpty()) {
+            settled.run();
+        } else {
+            SETTLER.execute(new Runnable() {
+                public void run() {
+                    try {
+                        for (Connection connection : probe)
+                            settle(connection);
+                    } finally {
+                        settled.run();
+                    }
+                }
+            });
+        }
+        return interrupted();
+    }
+
+    private synchronized boolean interrupted() {
+        return interrupted;
+    }
+
+    // stops the timer the first time; returns the connections to probe
+    private synchronized List<Connection> end() {
+        if (CURRENT.get() == this)
+            CURRENT.remove();
+        if (finished)
+            return new ArrayList<Connection>();
+        finished = true;
+        timer.cancel(false);
+        List<Connection> probe = new ArrayList<Connection>(pending);
+        pending.clear();
+        return probe;
+    }
+
+    /*
+     * Waits on the connection until a cancel that was sent to it can no
+     * longer hit a statement: either the probe gets canceled, or it outlives
+     * the time the cancel takes to arrive. An idle backend ignores a cancel.
+     */
+    private static void settle(Connection connection) {
+        try {
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.executeQuery("SELECT pg_sleep(" + SETTLE_MILLIS / 1000.0 + ")");
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // canceled, which is what we waited for
+        }
+    }
+}
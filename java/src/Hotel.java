@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,10 +24,18 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.lang.Math;
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,16 +46,142 @@ public class Hotel {
     // reference to physical database connection.
     private Connection _connection = null;
 
+    // routes hotel-keyed statements when the database is split across shards,
+    // null when there is a single database.
+    private ShardRouter _router = null;
+
+    // hotel managers and room prices shared by every Hotel object in this process,
+    // null unless the change feed triggers are installed.
+    private static RoomCache _cache = null;
+
+    // columnar snapshot behind the occupancy and revenue report, shared by the process
+    private static final BookingAnalytics _analytics = new BookingAnalytics();
+
+    // rows per FETCH when a large result is read from a cursor
+    private static final int FETCH_SIZE = Integer.getInteger("hotel.fetchSize", 10000);
+
+    // numbers the cursors of executeQueryAndReturnTableInChunks, so none clashes with one left open
+    private static final AtomicLong CURSORS = new AtomicLong();
+
     // handling the keyboard inputs through a BufferedReader
     // This variable can be global for convenience.
     static BufferedReader in = new BufferedReader(
             new InputStreamReader(System.in));
 
+    // SQL templates behind the menu operations. They are kept together so that
+    // tools such as QueryPlanAdvisor can run exactly what the menu runs.
+    // Free text typed by the user goes into the templates with a ?, through
+    // executePreparedQuery and executePreparedUpdate; numbers and dates are
+    // checked by checkInt and checkDate before they are formatted in.
+    static final String USER_TYPE_QUERY =
+            "SELECT U.userType FROM Users U WHERE U.userId = ?";
+    static final String LOGIN_QUERY =
+            "SELECT * FROM USERS WHERE userID = ? AND password = ?";
+    static final String CREATE_USER_QUERY =
+            "INSERT INTO USERS (name, password, userType) VALUES (?, ?, ?) RETURNING userID";
+    static final String VIEW_HOTELS_QUERY =
+            "SELECT * FROM Hotel H WHERE calculate_distance(%f, %f, H.latitude, H.longitude) <= 30";
+    // Use CASE WHEN to check if the room is available on the given date, it works like an if eles statement.
+    // A room with a repair that is not completed yet is out of service from the repair date on.
+    static final String VIEW_ROOMS_QUERY =
+            "SELECT R.roomNumber, R.price, " +
+                    "(CASE WHEN RB.bookingID IS NOT NULL THEN 'Not Available' " +
+                    "WHEN EXISTS (SELECT 1 FROM RoomRepairs RR JOIN RoomRepairRequests RRR ON RR.repairID = RRR.repairID " +
+                    "WHERE RR.hotelID = R.hotelID AND RR.roomNumber = R.roomNumber AND RR.repairDate <= '%1$s' " +
+                    "AND RRR.status <> 'completed') THEN 'Out of Service' " +
+                    "ELSE 'Available' END) AS availability " +
+                    "FROM Rooms R " +
+                    "LEFT JOIN RoomBookings RB ON R.hotelID = RB.hotelID AND R.roomNumber = RB.roomNumber AND RB.bookingDate = '%1$s' " +
+                    "WHERE R.hotelID = %2$d";
+    static final String ROOM_UNAVAILABLE_QUERY =
+            "SELECT bookingID FROM RoomBookings " +
+                    "WHERE hotelID = %1$d AND roomNumber = %2$d AND bookingDate = '%3$s' " +
+                    "UNION ALL " +
+                    "SELECT RR.repairID FROM RoomRepairs RR JOIN RoomRepairRequests RRR ON RR.repairID = RRR.repairID " +
+                    "WHERE RR.hotelID = %1$d AND RR.roomNumber = %2$d AND RR.repairDate <= '%3$s' " +
+                    "AND RRR.status <> 'completed'";
+    static final String ROOM_PRICE_QUERY =
+            "SELECT price FROM Rooms WHERE hotelID = %d AND roomNumber = %d";
+    // a booking is charged the price its room has when it is made
+    static final String INSERT_BOOKING_QUERY =
+            "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate, price) " +
+                    "SELECT %1$d, hotelID, roomNumber, '%4$s', price FROM Rooms " +
+                    "WHERE hotelID = %2$d AND roomNumber = %3$d RETURNING price";
+    // Checks and claims a whole group of (hotel, room, date) in one statement: when any of them
+    // is taken, unknown, out of service or requested twice the INSERT adds nothing and the conflicts are returned,
+    // otherwise every booking is returned with its price.
+    static final String GROUP_BOOKING_QUERY =
+            "WITH requested (hotelID, roomNumber, bookingDate) AS (" +
+                    "SELECT * FROM unnest('%s'::integer[], '%s'::integer[], '%s'::date[])), " +
+                    "conflicts AS (" +
+                    "SELECT Q.hotelID, Q.roomNumber, Q.bookingDate FROM requested Q " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM Rooms R WHERE R.hotelID = Q.hotelID AND R.roomNumber = Q.roomNumber) " +
+                    "OR EXISTS (SELECT 1 FROM RoomBookings RB " +
+                    "WHERE RB.hotelID = Q.hotelID AND RB.roomNumber = Q.roomNumber AND RB.bookingDate = Q.bookingDate) " +
+                    "OR EXISTS (SELECT 1 FROM RoomRepairs RR JOIN RoomRepairRequests RRR ON RR.repairID = RRR.repairID " +
+                    "WHERE RR.hotelID = Q.hotelID AND RR.roomNumber = Q.roomNumber AND RR.repairDate <= Q.bookingDate " +
+                    "AND RRR.status <> 'completed') " +
+                    "OR (SELECT COUNT(*) FROM requested D " +
+                    "WHERE D.hotelID = Q.hotelID AND D.roomNumber = Q.roomNumber AND D.bookingDate = Q.bookingDate) > 1), " +
+                    "booked AS (" +
+                    "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate, price) " +
+                    "SELECT %d, Q.hotelID, Q.roomNumber, Q.bookingDate, R.price FROM requested Q " +
+                    "JOIN Rooms R ON R.hotelID = Q.hotelID AND R.roomNumber = Q.roomNumber " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM conflicts) " +
+                    "RETURNING hotelID, roomNumber, bookingDate, price) " +
+                    "SELECT 'conflict', C.hotelID, C.roomNumber, C.bookingDate, NULL FROM conflicts C " +
+                    "UNION ALL " +
+                    "SELECT 'booked', B.hotelID, B.roomNumber, B.bookingDate, B.price FROM booked B";
+    static final String MANAGED_HOTELS_QUERY =
+            "SELECT hotelID FROM Hotel WHERE managerUserID = %d";
+    static final String HOTEL_MANAGER_QUERY =
+            "SELECT managerUserID FROM Hotel WHERE hotelID = %d";
+    static final String ROOM_INFO_QUERY =
+            "SELECT price, imageURL FROM Rooms WHERE hotelID = %d AND roomNumber = %d";
+    static final String UPDATE_ROOM_QUERY =
+            "UPDATE Rooms SET price = ?, imageURL = ? WHERE hotelID = ? AND roomNumber = ?";
+    static final String INSERT_ROOM_UPDATE_LOG_QUERY =
+            "INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) " +
+                    "VALUES (%d, %d, %d, 'NOW()')";
+    static final String RECENT_UPDATES_QUERY =
+            "SELECT * FROM RoomUpdatesLog " +
+                    "WHERE managerID = %d ORDER BY updatedOn DESC LIMIT 5";
+    static final String CUSTOMER_BOOKINGS_QUERY =
+            "SELECT RB.hotelID, RB.roomNumber, RB.bookingDate, RB.price " +
+                    "FROM RoomBookings RB " +
+                    "WHERE RB.customerID = %d " +
+                    "ORDER BY RB.bookingDate DESC LIMIT 5";
+    static final String HOTEL_BOOKINGS_QUERY =
+            "SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate, RB.price " +
+                    "FROM RoomBookings RB, Users U " +
+                    "WHERE RB.customerID = U.userID AND RB.bookingDate BETWEEN '%s' AND '%s' " +
+                    "ORDER BY RB.bookingDate";
+    static final String REGULAR_CUSTOMERS_QUERY =
+            "SELECT U.userID, U.name, COUNT(RB.bookingID) as bookings " +
+                    "FROM Users U, RoomBookings RB " +
+                    "WHERE U.userID = RB.customerID AND RB.hotelID = %d " +
+                    "GROUP BY U.userID, U.name " +
+                    "ORDER BY bookings DESC LIMIT 5";
+    static final String INSERT_REPAIR_QUERY =
+            "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (%d, %d, %d, '%s')";
+    static final String LAST_REPAIR_ID_QUERY =
+            "SELECT repairID FROM RoomRepairs WHERE companyID = %d AND hotelID = %d AND roomNumber = %d ORDER BY repairID DESC LIMIT 1";
+    static final String INSERT_REPAIR_REQUEST_QUERY =
+            "INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%d, %d)";
+    static final String REPAIR_HISTORY_QUERY =
+            "SELECT RR.companyID, RR.hotelID, RR.roomNumber, RR.repairDate, RRR.status " +
+                    "FROM RoomRepairs RR " +
+                    "JOIN RoomRepairRequests RRR ON RR.repairID = RRR.repairID " +
+                    "JOIN Hotel H ON RR.hotelID = H.hotelID " +
+                    "WHERE H.managerUserID = %d " +
+                    "ORDER BY RR.repairDate DESC";
+
     /**
      * Creates a new instance of Hotel
      *
-     * @param hostname the MySQL or PostgreSQL server hostname
-     * @param database the name of the database
+     * @param dbname the name of the database
+     * @param dbport the port of the database, or a comma separated list of
+     *               ports to spread the hotels across several shards
      * @param username the user name used to login to the database
      * @param password the user login password
      * @throws java.sql.SQLException when failed to make a connection.
@@ -55,12 +190,26 @@ public class Hotel {
 
         System.out.print("Connecting to database...");
         try {
+            if (dbport.contains(",")) {
+                // one database per shard, the first one also holds the writes of the global tables
+                List<String> urls = new ArrayList<String>();
+                for (String port : dbport.split(","))
+                    urls.add("jdbc:postgresql://localhost:" + port.trim() + "/" + dbname);
+                System.out.println("Shard URLs: " + urls + "\n");
+
+                this._router = new ShardRouter(urls, user, passwd);
+                this._connection = this._router.globalConnection();
+                startChangeFeed(urls, this._router.connections(), user, passwd);
+                System.out.println("Done");
+                return;
+            }
             // constructs the connection URL
             String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
             System.out.println("Connection URL: " + url + "\n");
 
             // obtain a physical connection
             this._connection = DriverManager.getConnection(url, user, passwd);
+            startChangeFeed(Collections.singletonList(url), Collections.singletonList(this._connection), user, passwd);
             System.out.println("Done");
         } catch (Exception e) {
             System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -69,6 +218,28 @@ public class Hotel {
         }//end catch
     }//end Hotel
 
+    /*
+     * Starts one change feed per database the first time a Hotel object connects,
+     * and caches lookups from then on. Without the notify triggers of triggers.sql
+     * nothing would tell us about changes made by other processes, so nothing is cached.
+     */
+    private static synchronized void startChangeFeed(List<String> urls, List<Connection> connections,
+                                                     String user, String passwd) throws SQLException {
+        if (_cache != null)
+            return;
+        for (Connection connection : connections)
+            if (!ChangeFeed.isInstalled(connection))
+                return;
+        RoomCache cache = new RoomCache();
+        for (String url : urls) {
+            ChangeFeed feed = new ChangeFeed(url, user, passwd);
+            cache.attach(feed);
+            _analytics.attach(feed);
+            feed.start();
+        }
+        _cache = cache;
+    }
+
     // Method to calculate euclidean distance between two latitude, longitude pairs.
     public double calculateDistance(double lat1, double long1, double lat2, double long2) {
         double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -84,14 +255,41 @@ public class Hotel {
      * @throws java.sql.SQLException when update failed
      */
     public void executeUpdate(String sql) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement();
+        executeUpdate(this._connection, sql);
+    }//end executeUpdate
+
+    /**
+     * Method to execute an update SQL statement on the shard that stores the
+     * given hotel. Without shards this is the same as executeUpdate(sql).
+     *
+     * @param hotelID the hotel the statement touches
+     * @param sql the input SQL string
+     * @throws java.sql.SQLException when update failed
+     */
+    public void executeUpdate(int hotelID, String sql) throws SQLException {
+        executeUpdate(connectionFor(hotelID), sql);
+    }//end executeUpdate
+
+    static void executeUpdate(Connection connection, String sql) throws SQLException {
+        QueryEvent event = QueryEvent.start();
+        try {
+            // creates a statement object
+            Statement stmt = connection.createStatement();
+            Deadline.watch(stmt);
 
-        // issues the update instruction
-        stmt.executeUpdate(sql);
+            // issues the update instruction
+            event.rows(stmt.executeUpdate(sql));
 
-        // close the instruction
-        stmt.close();
+            // close the instruction
+            stmt.close();
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            Deadline.unwatch();
+            event.finish(sql);
+        }
     }//end executeUpdate
 
     /**
@@ -104,37 +302,49 @@ public class Hotel {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQueryAndPrintResult(String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement();
-
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery(query);
-
-        /*
-         ** obtains the metadata object for the returned result set.  The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int numCol = rsmd.getColumnCount();
-        int rowCount = 0;
-
-        // iterates through the result set and output them to standard out.
-        boolean outputHeader = true;
-        while (rs.next()) {
-            if (outputHeader) {
-                for (int i = 1; i <= numCol; i++) {
-                    System.out.print(rsmd.getColumnName(i) + "\t");
+        QueryEvent event = QueryEvent.start();
+        try {
+            // creates a statement object
+            Statement stmt = this._connection.createStatement();
+            Deadline.watch(stmt);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery(query);
+
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+            int rowCount = 0;
+
+            // iterates through the result set and output them to standard out.
+            boolean outputHeader = true;
+            while (rs.next()) {
+                if (outputHeader) {
+                    for (int i = 1; i <= numCol; i++) {
+                        System.out.print(rsmd.getColumnName(i) + "\t");
+                    }
+                    System.out.println();
+                    outputHeader = false;
                 }
+                for (int i = 1; i <= numCol; ++i)
+                    System.out.print(rs.getString(i) + "\t");
                 System.out.println();
-                outputHeader = false;
-            }
-            for (int i = 1; i <= numCol; ++i)
-                System.out.print(rs.getString(i) + "\t");
-            System.out.println();
-            ++rowCount;
-        }//end while
-        stmt.close();
-        return rowCount;
+                ++rowCount;
+            }//end while
+            stmt.close();
+            event.rows(rowCount);
+            return rowCount;
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            Deadline.unwatch();
+            event.finish(query);
+        }
     }//end executeQuery
 
     /**
@@ -147,33 +357,299 @@ public class Hotel {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement();
+        return executeQueryAndReturnResult(this._connection, query);
+    }//end executeQueryAndReturnResult
+
+    /**
+     * Same as executeQueryAndReturnResult(query), on the shard that stores the
+     * given hotel.
+     *
+     * @param hotelID the hotel the query reads
+     * @param query the input query string
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult(int hotelID, String query) throws SQLException {
+        return executeQueryAndReturnResult(connectionFor(hotelID), query);
+    }//end executeQueryAndReturnResult
 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery(query);
-
-        /*
-         ** obtains the metadata object for the returned result set.  The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int numCol = rsmd.getColumnCount();
-        int rowCount = 0;
-
-        // iterates through the result set and saves the data returned by the query.
-        boolean outputHeader = false;
-        List<List<String>> result = new ArrayList<List<String>>();
-        while (rs.next()) {
-            List<String> record = new ArrayList<String>();
-            for (int i = 1; i <= numCol; ++i)
-                record.add(rs.getString(i));
-            result.add(record);
-        }//end while
-        stmt.close();
+    /**
+     * Method to execute a query that spans hotels. With shards the query runs
+     * on every shard in parallel and the rows are merged again, so the ORDER BY
+     * and LIMIT of the query have to be repeated by the caller.
+     *
+     * @param query the input query string
+     * @param order the ORDER BY of the query, or null
+     * @param limit the LIMIT of the query, or 0
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResultFromAllShards(String query, Comparator<List<String>> order, int limit)
+            throws SQLException {
+        if (this._router == null)
+            return executeQueryAndReturnResult(query);
+        List<List<String>> result = this._router.scatter(query);
+        if (order != null)
+            Collections.sort(result, order);
+        if (limit > 0 && result.size() > limit)
+            result = new ArrayList<List<String>>(result.subList(0, limit));
         return result;
+    }//end executeQueryAndReturnResultFromAllShards
+
+    static List<List<String>> executeQueryAndReturnResult(Connection connection, String query) throws SQLException {
+        QueryEvent event = QueryEvent.start();
+        try {
+            // creates a statement object
+            Statement stmt = connection.createStatement();
+            Deadline.watch(stmt);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery(query);
+
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+            int rowCount = 0;
+
+            // iterates through the result set and saves the data returned by the query.
+            boolean outputHeader = false;
+            List<List<String>> result = new ArrayList<List<String>>();
+            while (rs.next()) {
+                List<String> record = new ArrayList<String>();
+                for (int i = 1; i <= numCol; ++i)
+                    record.add(rs.getString(i));
+                result.add(record);
+            }//end while
+            stmt.close();
+            event.rows(result.size());
+            return result;
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            Deadline.unwatch();
+            event.finish(query);
+        }
     }//end executeQueryAndReturnResult
 
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and returns the results as a typed
+     * table, for callers that use the values rather than print them.
+     *
+     * @param query the input query string
+     * @return the query result, one array per column
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ResultTable executeQueryAndReturnTable(String query) throws SQLException {
+        return executeQueryAndReturnTable(this._connection, query);
+    }//end executeQueryAndReturnTable
+
+    /**
+     * Same as executeQueryAndReturnTable(query), on the shard that stores the
+     * given hotel.
+     *
+     * @param hotelID the hotel the query reads
+     * @param query the input query string
+     * @return the query result, one array per column
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ResultTable executeQueryAndReturnTable(int hotelID, String query) throws SQLException {
+        return executeQueryAndReturnTable(connectionFor(hotelID), query);
+    }//end executeQueryAndReturnTable
+
+    /**
+     * Method to execute a query that spans hotels. With shards the query runs
+     * on every shard in parallel and every shard keeps its own table; use
+     * ResultTable.merge to combine results that are sorted.
+     *
+     * @param query the input query string
+     * @return one table per shard, or a single table without shards
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<ResultTable> executeQueryAndReturnTablesFromAllShards(String query) throws SQLException {
+        if (this._router == null)
+            return Collections.singletonList(executeQueryAndReturnTableInChunks(this._connection, query));
+        return this._router.scatterTables(query);
+    }//end executeQueryAndReturnTablesFromAllShards
+
+    /**
+     * Same as executeQueryAndReturnTablesFromAllShards(query), with a query of
+     * its own for every shard, for callers that keep state per shard.
+     *
+     * @param queries one query per shard, see shardCount()
+     * @return one table per shard, in the order of the queries
+     * @throws java.sql.SQLException when failed to execute a query
+     */
+    public List<ResultTable> executeQueriesAndReturnTablesFromAllShards(List<String> queries) throws SQLException {
+        if (this._router == null)
+            return Collections.singletonList(executeQueryAndReturnTableInChunks(this._connection, queries.get(0)));
+        return this._router.scatterTables(queries);
+    }//end executeQueriesAndReturnTablesFromAllShards
+
+    /**
+     * @return the number of shards, 1 without shards
+     */
+    public int shardCount() {
+        return this._router == null ? 1 : this._router.connections().size();
+    }
+
+    static ResultTable executeQueryAndReturnTable(Connection connection, String query) throws SQLException {
+        QueryEvent event = QueryEvent.start();
+        try {
+            Statement stmt = connection.createStatement();
+            Deadline.watch(stmt);
+            try {
+                ResultTable table = ResultTable.read(stmt.executeQuery(query));
+                event.rows(table.size());
+                return table;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            Deadline.unwatch();
+            event.finish(query);
+        }
+    }//end executeQueryAndReturnTable
+
+    /**
+     * Same as executeQueryAndReturnTable(query) for a statement that takes
+     * user input. The values are sent as parameters, never as SQL text.
+     *
+     * @param query the statement, with a ? for every value
+     * @param values the values, Integer or String
+     * @return the query result, one array per column
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ResultTable executePreparedQuery(String query, Object... values) throws SQLException {
+        return executePrepared(this._connection, query, values, true);
+    }//end executePreparedQuery
+
+    /**
+     * Same as executeUpdate(hotelID, sql) for a statement that takes user
+     * input. The values are sent as parameters, never as SQL text.
+     *
+     * @param hotelID the hotel the statement touches
+     * @param sql the statement, with a ? for every value
+     * @param values the values, Integer or String
+     * @throws java.sql.SQLException when update failed
+     */
+    public void executePreparedUpdate(int hotelID, String sql, Object... values) throws SQLException {
+        executePrepared(connectionFor(hotelID), sql, values, false);
+    }//end executePreparedUpdate
+
+    private static ResultTable executePrepared(Connection connection, String sql, Object[] values, boolean query)
+            throws SQLException {
+        QueryEvent event = QueryEvent.start();
+        try {
+            PreparedStatement stmt = connection.prepareStatement(sql);
+            Deadline.watch(stmt);
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] instanceof Integer)
+                        stmt.setInt(i + 1, ((Integer) values[i]).intValue());
+                    else
+                        stmt.setString(i + 1, (String) values[i]);
+                }
+                if (!query) {
+                    event.rows(stmt.executeUpdate());
+                    return null;
+                }
+                ResultTable table = ResultTable.read(stmt.executeQuery());
+                event.rows(table.size());
+                return table;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            Deadline.unwatch();
+            event.finish(sql);
+        }
+    }//end executePrepared
+
+    /*
+     * Same as executeQueryAndReturnTable(connection, query), for results that
+     * can be large. The pg73 driver reads a whole result set into memory, as
+     * strings, before it returns the first row; here the rows are fetched from
+     * a cursor FETCH_SIZE at a time, so only one chunk is held as strings
+     * while the typed table grows.
+     * <p>
+     * Inside a transaction of the caller the cursor is closed again even when
+     * a fetch fails, and it has a name of its own, so a later call in the same
+     * transaction cannot clash with it.
+     */
+    static ResultTable executeQueryAndReturnTableInChunks(Connection connection, String query) throws SQLException {
+        // a cursor only lives as long as its transaction
+        boolean ownTransaction = connection.getAutoCommit();
+        String cursor = "result_chunks_" + CURSORS.incrementAndGet();
+        QueryEvent event = QueryEvent.start();
+        Statement stmt = null;
+        boolean declared = false;
+        boolean done = false;
+        try {
+            stmt = connection.createStatement();
+            Deadline.watch(stmt);
+            if (ownTransaction)
+                connection.setAutoCommit(false);
+            stmt.executeUpdate("DECLARE " + cursor + " NO SCROLL CURSOR FOR " + query);
+            declared = true;
+            Map<String, String> strings = new HashMap<String, String>();
+            ResultTable table = null;
+            int before;
+            do {
+                before = table == null ? 0 : table.size();
+                table = ResultTable.read(stmt.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM " + cursor),
+                        table, strings);
+            } while (table.size() - before == FETCH_SIZE);
+            stmt.executeUpdate("CLOSE " + cursor);
+            if (ownTransaction)
+                connection.commit();
+            done = true;
+            event.rows(table.size());
+            return table;
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            try {
+                if (ownTransaction) {
+                    if (!done)
+                        connection.rollback();
+                    connection.setAutoCommit(true);
+                } else if (declared && !done) {
+                    closeCursor(stmt, cursor);
+                }
+                if (stmt != null)
+                    stmt.close();
+            } finally {
+                Deadline.unwatch();
+                event.finish(query);
+            }
+        }
+    }//end executeQueryAndReturnTableInChunks
+
+    // an aborted transaction drops its cursors with it, and then CLOSE fails as well
+    private static void closeCursor(Statement stmt, String cursor) {
+        try {
+            stmt.executeUpdate("CLOSE " + cursor);
+        } catch (SQLException e) {
+            // ignored.
+        }
+    }
+
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the number of results
@@ -183,20 +659,48 @@ public class Hotel {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQuery(String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement();
+        return executeQuery(this._connection, query);
+    }
 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery(query);
+    /**
+     * Same as executeQuery(query), on the shard that stores the given hotel.
+     *
+     * @param hotelID the hotel the query reads
+     * @param query the input query string
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery(int hotelID, String query) throws SQLException {
+        return executeQuery(connectionFor(hotelID), query);
+    }
+
+    static int executeQuery(Connection connection, String query) throws SQLException {
+        QueryEvent event = QueryEvent.start();
+        try {
+            // creates a statement object
+            Statement stmt = connection.createStatement();
+            Deadline.watch(stmt);
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery(query);
 
-        int rowCount = 0;
+            int rowCount = 0;
 
-        // iterates through the result set and count number of results.
-        while (rs.next()) {
-            rowCount++;
-        }//end while
-        stmt.close();
-        return rowCount;
+            // iterates through the result set and count number of results.
+            while (rs.next()) {
+                rowCount++;
+            }//end while
+            stmt.close();
+            event.rows(rowCount);
+            return rowCount;
+        } catch (SQLException e) {
+            event.failed(e);
+            Deadline.failed(e);
+            throw e;
+        } finally {
+            Deadline.unwatch();
+            event.finish(query);
+        }
     }
 
     /**
@@ -225,12 +729,227 @@ public class Hotel {
         return -1;
     }
 
+    private Connection connectionFor(int hotelID) throws SQLException {
+        return this._router == null ? this._connection : this._router.connectionFor(hotelID);
+    }
+
+    /**
+     * Method to check whether a manager manages a hotel. The answer comes from
+     * the room cache when the change feed is running.
+     *
+     * @param managerID the userID of the manager
+     * @param hotelID the hotel to check
+     * @return true if the hotel exists and is managed by the manager
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public boolean managesHotel(int managerID, int hotelID) throws SQLException {
+        Integer manager = _cache == null ? null : _cache.managerOf(hotelID);
+        if (manager == null) {
+            long readAt = _cache == null ? 0 : _cache.generation();
+            ResultTable result = executeQueryAndReturnTable(hotelID, String.format(HOTEL_MANAGER_QUERY, hotelID));
+            if (result.isEmpty())
+                return false;
+            manager = result.getInt(0, 0);
+            if (_cache != null)
+                _cache.putManager(hotelID, manager, readAt);
+        }
+        return manager == managerID;
+    }
+
+    /**
+     * Method to look up the current price of a room, from the room cache when
+     * the change feed is running.
+     *
+     * @param hotelID the hotel of the room
+     * @param roomNumber the room number
+     * @return the price, or null if there is no such room
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public Integer getRoomPrice(int hotelID, int roomNumber) throws SQLException {
+        Integer price = _cache == null ? null : _cache.priceOf(hotelID, roomNumber);
+        if (price == null) {
+            long readAt = _cache == null ? 0 : _cache.generation();
+            ResultTable result = executeQueryAndReturnTable(hotelID, String.format(ROOM_PRICE_QUERY, hotelID, roomNumber));
+            if (result.isEmpty())
+                return null;
+            price = result.getInt(0, 0);
+            if (_cache != null)
+                _cache.putPrice(hotelID, roomNumber, price, readAt);
+        }
+        return price;
+    }
+
+    /**
+     * Method to book a group of rooms all-or-nothing. Each shard involved gets
+     * one GROUP_BOOKING_QUERY; with more than one shard the statements run in
+     * open transactions that are only committed when no shard reported a
+     * conflict. The shards are committed one after the other, without a
+     * prepare step: when a commit fails, the bookings already committed on the
+     * other shards are deleted again. The operation's deadline cancels nothing
+     * while the shards commit. If that delete fails as well, the group
+     * is left partly booked and the rows are printed to stderr.
+     *
+     * @param customerID the customer making the booking
+     * @param hotelIDs the hotel of each room
+     * @param roomNumbers the room numbers
+     * @param dates the booking dates, already checked to be MM-dd-yyyy
+     * @return rows of (status, hotelID, roomNumber, bookingDate, price): only
+     * 'conflict' rows when nothing was booked, only 'booked' rows otherwise
+     * @throws java.sql.SQLException when failed to execute the booking
+     */
+    public List<List<String>> bookRoomGroup(int customerID, int[] hotelIDs, int[] roomNumbers, String[] dates)
+            throws SQLException {
+        Map<Connection, List<Integer>> byShard = new LinkedHashMap<Connection, List<Integer>>();
+        for (int i = 0; i < hotelIDs.length; i++) {
+            Connection connection = connectionFor(hotelIDs[i]);
+            if (!byShard.containsKey(connection))
+                byShard.put(connection, new ArrayList<Integer>());
+            byShard.get(connection).add(i);
+        }
+
+        if (byShard.size() == 1) {
+            // a single statement is a transaction of its own
+            String query = groupBookingQuery(customerID, hotelIDs, roomNumbers, dates, byShard.values().iterator().next());
+            try {
+                return executeQueryAndReturnResult(connectionFor(hotelIDs[0]), query);
+            } catch (SQLException e) {
+                if (!isUniqueViolation(e))
+                    throw e;
+                // a concurrent booking claimed one of the rooms after our check; run again to report it
+                return executeQueryAndReturnResult(connectionFor(hotelIDs[0]), query);
+            }
+        }
+
+        List<List<String>> booked = new ArrayList<List<String>>();
+        List<List<String>> conflicts = new ArrayList<List<String>>();
+        Map<Connection, List<List<String>>> bookedByShard = new LinkedHashMap<Connection, List<List<String>>>();
+        List<Connection> committed = new ArrayList<Connection>();
+        boolean committing = false;
+        try {
+            for (Map.Entry<Connection, List<Integer>> shard : byShard.entrySet()) {
+                shard.getKey().setAutoCommit(false);
+                bookedByShard.put(shard.getKey(), new ArrayList<List<String>>());
+                for (List<String> row : executeQueryAndReturnResult(shard.getKey(),
+                        groupBookingQuery(customerID, hotelIDs, roomNumbers, dates, shard.getValue()))) {
+                    if (row.get(0).equals("conflict")) {
+                        conflicts.add(row);
+                    } else {
+                        booked.add(row);
+                        bookedByShard.get(shard.getKey()).add(row);
+                    }
+                }
+            }
+            // a cancel would hit the commit of a shard, not a statement; once over time, roll back instead
+            if (conflicts.isEmpty() && !(committing = Deadline.beginCommit()))
+                throw new SQLException("Canceled: the group booking ran out of time before it was committed");
+            for (Connection connection : byShard.keySet()) {
+                if (conflicts.isEmpty()) {
+                    connection.commit();
+                    committed.add(connection);
+                } else {
+                    connection.rollback();
+                }
+            }
+        } catch (SQLException e) {
+            for (Connection connection : byShard.keySet())
+                if (!committed.contains(connection) && !connection.getAutoCommit())
+                    connection.rollback();
+            for (Connection connection : committed)
+                undoBookings(connection, customerID, bookedByShard.get(connection));
+            throw e;
+        } finally {
+            for (Connection connection : byShard.keySet())
+                connection.setAutoCommit(true);
+            if (committing)
+                Deadline.endCommit();
+        }
+        return conflicts.isEmpty() ? booked : conflicts;
+    }
+
+    /*
+     * Deletes the bookings of a group that were committed on one shard before
+     * the commit on another shard failed.
+     */
+    private static void undoBookings(Connection connection, int customerID, List<List<String>> rows) {
+        StringBuilder keys = new StringBuilder();
+        for (List<String> row : rows) {
+            if (keys.length() > 0)
+                keys.append(", ");
+            keys.append(String.format("(%s, %s, '%s'::date)", row.get(1), row.get(2), row.get(3)));
+        }
+        try {
+            executeUpdate(connection, String.format(
+                    "DELETE FROM RoomBookings WHERE customerID = %d AND (hotelID, roomNumber, bookingDate) IN (%s)",
+                    customerID, keys));
+            connection.commit();
+        } catch (SQLException e) {
+            System.err.println("Group booking of customer " + customerID + " left partly booked, could not undo "
+                    + rows + ": " + e.getMessage());
+        }
+    }
+
+    private static String groupBookingQuery(int customerID, int[] hotelIDs, int[] roomNumbers, String[] dates,
+                                            List<Integer> indexes) {
+        StringBuilder hotels = new StringBuilder("{");
+        StringBuilder rooms = new StringBuilder("{");
+        StringBuilder days = new StringBuilder("{");
+        for (int i : indexes) {
+            if (hotels.length() > 1) {
+                hotels.append(',');
+                rooms.append(',');
+                days.append(',');
+            }
+            hotels.append(hotelIDs[i]);
+            rooms.append(roomNumbers[i]);
+            days.append(dates[i]);
+        }
+        return String.format(GROUP_BOOKING_QUERY, hotels.append('}'), rooms.append('}'), days.append('}'), customerID);
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        return "23505".equals(e.getSQLState()) || String.valueOf(e.getMessage()).contains("duplicate key");
+    }
+
+    /**
+     * Copies rows of a global table (Users, MaintenanceCompany) that were just
+     * written to every shard. Does nothing without shards.
+     *
+     * @param table the global table
+     * @param where condition selecting the new rows
+     * @throws java.sql.SQLException when a shard could not be updated
+     */
+    public void replicateGlobal(String table, String where) throws SQLException {
+        if (this._router != null)
+            this._router.replicateGlobal(table, where);
+    }
+
+    /**
+     * Orders merged rows by one column, the way the ORDER BY of the query did.
+     *
+     * @param column the index of the column in the row
+     * @param numeric compare the values as numbers instead of text
+     * @param descending reverse the order
+     * @return a comparator for executeQueryAndReturnResultFromAllShards
+     */
+    static Comparator<List<String>> byColumn(final int column, final boolean numeric, final boolean descending) {
+        return new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+                int c = numeric
+                        ? Double.compare(Double.parseDouble(a.get(column)), Double.parseDouble(b.get(column)))
+                        : a.get(column).compareTo(b.get(column));
+                return descending ? -c : c;
+            }
+        };
+    }
+
     /**
      * Method to close the physical connection if it is open.
      */
     public void cleanup() {
         try {
-            if (this._connection != null) {
+            if (this._router != null) {
+                this._router.close();
+            } else if (this._connection != null) {
                 this._connection.close();
             }//end if
         } catch (SQLException e) {
@@ -276,9 +995,11 @@ public class Hotel {
                 String authorisedUser = null;
                 switch (readChoice()) {
                     case 1:
+                        OperationEvent.start("CreateUser", null);
                         CreateUser(esql);
                         break;
                     case 2:
+                        OperationEvent.start("LogIn", null);
                         authorisedUser = LogIn(esql);
                         break;
                     case 9:
@@ -288,9 +1009,10 @@ public class Hotel {
                         System.out.println("Unrecognized choice!");
                         break;
                 }//end switch
+                OperationEvent.finish();
                 if (authorisedUser != null) {
-                    String query = "SELECT U.userType FROM Users U WHERE U.userId = " + authorisedUser;
-                    String userType = esql.executeQueryAndReturnResult(query).get(0).get(0);
+                    String userType = esql.executePreparedQuery(USER_TYPE_QUERY, Integer.valueOf(authorisedUser))
+                            .getString(0, 0);
                     // Customer menu
                     if (userType.toLowerCase().contains("customer")) {
                         boolean usermenu = true;
@@ -301,21 +1023,30 @@ public class Hotel {
                             System.out.println("2. View Rooms");
                             System.out.println("3. Book a Room");
                             System.out.println("4. View recent booking history");
+                            System.out.println("5. Book a group of rooms");
                             System.out.println("----------------------------------");
                             System.out.println("20. Log out");
                             switch (readChoice()) {
                                 case 1:
+                                    OperationEvent.start("viewHotels", userType);
                                     viewHotels(esql);
                                     break;
                                 case 2:
+                                    OperationEvent.start("viewRooms", userType);
                                     viewRooms(esql);
                                     break;
                                 case 3:
+                                    OperationEvent.start("bookRooms", userType);
                                     bookRooms(esql, authorisedUser);
                                     break;
                                 case 4:
+                                    OperationEvent.start("viewRecentBookingsfromCustomer", userType);
                                     viewRecentBookingsfromCustomer(esql, authorisedUser);
                                     break;
+                                case 5:
+                                    OperationEvent.start("bookRoomGroup", userType);
+                                    bookRoomGroup(esql, authorisedUser);
+                                    break;
                                 case 20:
                                     usermenu = false;
                                     break;
@@ -323,6 +1054,7 @@ public class Hotel {
                                     System.out.println("Unrecognized choice!");
                                     break;
                             }
+                            OperationEvent.finish();
                         }
                     } else {
                         // Manager menu
@@ -342,41 +1074,61 @@ public class Hotel {
                             System.out.println("8. View 5 regular Customers");
                             System.out.println("9. Place room repair Request to a company");
                             System.out.println("10. View room repair Requests history");
+                            System.out.println("11. Book a group of rooms");
+                            System.out.println("12. View occupancy and revenue report");
 
                             System.out.println("----------------------------------------------");
                             System.out.println("20. Log out");
                             switch (readChoice()) {
                                 case 1:
+                                    OperationEvent.start("viewHotels", userType);
                                     viewHotels(esql);
                                     break;
                                 case 2:
+                                    OperationEvent.start("viewRooms", userType);
                                     viewRooms(esql);
                                     break;
                                 case 3:
+                                    OperationEvent.start("bookRooms", userType);
                                     bookRooms(esql, authorisedUser);
                                     break;
                                     //this is for customer
                                 case 4:
+                                    OperationEvent.start("viewRecentBookingsfromCustomer", userType);
                                     viewRecentBookingsfromCustomer(esql, authorisedUser);
                                     break;
                                 case 5:
+                                    OperationEvent.start("updateRoomInfo", userType);
                                     updateRoomInfo(esql, authorisedUser);
                                     break;
                                 case 6:
+                                    OperationEvent.start("viewRecentUpdates", userType);
                                     viewRecentUpdates(esql, authorisedUser);
                                     break;
                                 case 7:
+                                    OperationEvent.start("viewBookingHistoryofHotel", userType);
                                     viewBookingHistoryofHotel(esql);
                                     break;
                                 case 8:
+                                    OperationEvent.start("viewRegularCustomers", userType);
                                     viewRegularCustomers(esql, authorisedUser);
                                     break;
                                 case 9:
+                                    OperationEvent.start("placeRoomRepairRequests", userType);
                                     placeRoomRepairRequests(esql, authorisedUser);
                                     break;
                                 case 10:
+                                    OperationEvent.start("viewRoomRepairHistory", userType);
                                     viewRoomRepairHistory(esql, authorisedUser);
                                     break;
+                                case 11:
+                                    OperationEvent.start("bookRoomGroup", userType);
+                                    bookRoomGroup(esql, authorisedUser);
+                                    break;
+                                case 12:
+                                    OperationEvent.start("viewOccupancyReport", userType);
+                                    viewOccupancyReport(esql, authorisedUser);
+                                    break;
                                 case 20:
                                     usermenu = false;
                                     break;
@@ -384,6 +1136,7 @@ public class Hotel {
                                     System.out.println("Unrecognized choice!");
                                     break;
                             }
+                            OperationEvent.finish();
                         }
                     }
                 }
@@ -431,22 +1184,32 @@ public class Hotel {
         return input;
     }//end readChoice
 
+    /*
+     * Asks for the next input. Requests of HotelServer come with all their
+     * input, so nothing is printed for them.
+     **/
+    static void prompt(String text) {
+        if (!Terminal.isBound())
+            System.out.print(text);
+    }//end prompt
+
     /*
      * Creates a new user
      **/
     public static void CreateUser(Hotel esql) {
         try {
-            System.out.print("\tEnter name: ");
+            prompt("\tEnter name: ");
             String name = in.readLine();
-            System.out.print("\tEnter password: ");
+            prompt("\tEnter password: ");
             String password = in.readLine();
             String type = "Customer";
             // Trigger here
-            String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
-            esql.executeUpdate(query);
-            System.out.println("User successfully created with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq"));
+            String userID = esql.executePreparedQuery(CREATE_USER_QUERY, name, password, type).getString(0, 0);
+            esql.replicateGlobal("Users", "userID = " + userID);
+            System.out.println("User successfully created with userID = " + userID);
 
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }//end CreateUser
@@ -458,17 +1221,24 @@ public class Hotel {
      **/
     public static String LogIn(Hotel esql) {
         try {
-            System.out.print("\tEnter userID: ");
-            String userID = in.readLine();
-            System.out.print("\tEnter password: ");
+            prompt("\tEnter userID: ");
+            String userID = in.readLine().trim();
+            prompt("\tEnter password: ");
             String password = in.readLine();
 
-            String query = String.format("SELECT * FROM USERS WHERE userID = '%s' AND password = '%s'", userID, password);
-            int userNum = esql.executeQuery(query);
+            // only a number can be a userID
+            if (!userID.matches("[0-9]{1,9}")) {
+                System.out.println("Invalid userID.");
+                OperationEvent.outcome("rejected");
+                return null;
+            }
+            int userNum = esql.executePreparedQuery(LOGIN_QUERY, Integer.valueOf(userID), password).size();
             if (userNum > 0)
                 return userID;
+            OperationEvent.outcome("rejected");
             return null;
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
             return null;
         }
@@ -481,29 +1251,28 @@ public class Hotel {
     public static void viewHotels(Hotel esql) {
         try {
             // Get user input
-            System.out.print("\tEnter latitude: ");
+            prompt("\tEnter latitude: ");
             double latitude = Double.parseDouble(in.readLine());
-            System.out.print("\tEnter longitude: ");
+            prompt("\tEnter longitude: ");
             double longitude = Double.parseDouble(in.readLine());
 
             // SQL query to select hotels within 30 units of distance
-            String query = String.format(
-                    "SELECT * FROM Hotel H WHERE calculate_distance(%f, %f, H.latitude, H.longitude) <= 30",
-                    latitude, longitude
-            );
-
-            // Execute the query and print the results
-            int rowCount = esql.executeQueryAndPrintResult(query);
-            if (rowCount == 0) {
+            String query = String.format(VIEW_HOTELS_QUERY, latitude, longitude);
+
+            // Execute the query, hotels can be on any shard
+            List<List<String>> result = esql.executeQueryAndReturnResultFromAllShards(query, byColumn(0, true, false), 0);
+            if (result.isEmpty()) {
                 System.out.println("Sorry, no hotel found within 30 units from given place.");
+                return;
             }
-            // Print the query out
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-            System.out.println("\t\t\tHotel:");
+            // Print the results
+            System.out.println("Hotel ID | Hotel Name | Latitude | Longitude | Established | Manager ID");
             for (List<String> row : result) {
-                System.out.println(row.get(0));
+                System.out.println(row.get(0) + " | " + row.get(1).trim() + " | " + row.get(2) + " | " +
+                        row.get(3) + " | " + row.get(4) + " | " + row.get(5));
             }
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -511,35 +1280,24 @@ public class Hotel {
     public static void viewRooms(Hotel esql) {
         try {
             // Get user input
-            System.out.print("\tEnter hotel ID: ");
+            prompt("\tEnter hotel ID: ");
             int hotelID = checkInt();
-            System.out.print("\tEnter date (MM-dd-yyyy): ");
+            OperationEvent.hotel(hotelID);
+            prompt("\tEnter date (MM-dd-yyyy): ");
             String inputDate = in.readLine();
 
             // Check the date format
-            SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy");
-            dateFormat.setLenient(false);
-            Date date;
-            try {
-                date = dateFormat.parse(inputDate);
-            } catch (ParseException e) {
+            if (!checkDate(inputDate)) {
                 System.err.println("Invalid date format! Please enter as 'MM-dd-yyyy'.");
+                OperationEvent.outcome("rejected");
                 return;
             }
 
             // Define the SQL query to select rooms with their price and availability on the given date
-            // Use CASE WHEN to check if the room is available on the given date, it works like an if eles statement
-            String query = String.format(
-                    "SELECT R.roomNumber, R.price, " +
-                            "(CASE WHEN RB.bookingID IS NULL THEN 'Available' ELSE 'Not Available' END) AS availability " +
-                            "FROM Rooms R " +
-                            "LEFT JOIN RoomBookings RB ON R.hotelID = RB.hotelID AND R.roomNumber = RB.roomNumber AND RB.bookingDate = '%s' " +
-                            "WHERE R.hotelID = %d",
-                    inputDate, hotelID
-            );
+            String query = String.format(VIEW_ROOMS_QUERY, inputDate, hotelID);
 
             // Execute the SQL query
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
+            List<List<String>> result = esql.executeQueryAndReturnResult(hotelID, query);
             if (result.isEmpty()) {
                 System.out.println("No room found for the given hotel ID and date.");
                 return;
@@ -551,6 +1309,7 @@ public class Hotel {
             }
 
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -561,47 +1320,104 @@ public class Hotel {
             int customerID = Integer.parseInt(userID);
 
             // get user input
-            System.out.print("\tEnter hotelID: ");
+            prompt("\tEnter hotelID: ");
             int hotelID = checkInt();
-            System.out.print("\tEnter room number: ");
+            OperationEvent.hotel(hotelID);
+            prompt("\tEnter room number: ");
             int roomNumber = checkInt();
-            System.out.print("\tEnter booking date (MM-dd-yyyy): ");
+            prompt("\tEnter booking date (MM-dd-yyyy): ");
             String bookingDate = in.readLine();
+            if (!checkDate(bookingDate)) {
+                System.err.println("Invalid date format! Please enter as 'MM-dd-yyyy'.");
+                OperationEvent.outcome("rejected");
+                return;
+            }
 
-            // Check if the room is available on the given date
-            String checkAvailabilityQuery = String.format(
-                    "SELECT * FROM RoomBookings " +
-                            "WHERE hotelID = %d AND roomNumber = %d AND bookingDate = '%s'",
-                    hotelID, roomNumber, bookingDate
-            );
-            int roomAvailability = esql.executeQuery(checkAvailabilityQuery);
+            // Check if the room is booked or out of service on the given date
+            String checkAvailabilityQuery = String.format(ROOM_UNAVAILABLE_QUERY, hotelID, roomNumber, bookingDate);
+            int roomAvailability = esql.executeQuery(hotelID, checkAvailabilityQuery);
 
             if (roomAvailability == 0) {
                 // Room is available
-                // Fetch the room price from the Rooms table
-                String roomPriceQuery = String.format(
-                        "SELECT price FROM Rooms WHERE hotelID = %d AND roomNumber = '%s'",
-                        hotelID, roomNumber
-                );
-                List<List<String>> roomPriceResult = esql.executeQueryAndReturnResult(roomPriceQuery);
-                String roomPrice = roomPriceResult.get(0).get(0);
+                // Check that the room exists; the booking is charged the price the insert returns
+                Integer roomPrice = esql.getRoomPrice(hotelID, roomNumber);
+                if (roomPrice == null) {
+                    System.out.println("There is no room " + roomNumber + " in hotel " + hotelID + ".");
+                    OperationEvent.outcome("rejected");
+                    return;
+                }
 
-                // Insert the booking into the RoomBookings table
-                // Trigger here
+                // Insert the booking into the RoomBookings table with the price it is charged
                 String insertBookingQuery = String.format(
-                        "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) " +
-                                "VALUES (%d, %d, %d, '%s')",
-                        customerID, hotelID, roomNumber, bookingDate
-                );
-                esql.executeUpdate(insertBookingQuery);
+                        INSERT_BOOKING_QUERY, customerID, hotelID, roomNumber, bookingDate);
+                int charged = esql.executeQueryAndReturnTable(hotelID, insertBookingQuery).getInt(0, 0);
 
                 // Display the room price to the customer
-                System.out.println("Booking successfully! Room price: $" + roomPrice);
+                System.out.println("Booking successfully! Room price: $" + charged);
             } else {
                 // Room is not available, display a message
                 System.out.println("The room is not available on the selected date.");
+                OperationEvent.outcome("rejected");
+            }
+        } catch (Exception e) {
+            OperationEvent.outcome("error");
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public static void bookRoomGroup(Hotel esql, String userID) {
+        try {
+            // Get user ID
+            int customerID = Integer.parseInt(userID);
+
+            prompt("\tEnter number of rooms to book: ");
+            int count = checkInt();
+            if (count == 0) {
+                System.out.println("Nothing to book.");
+                return;
+            }
+
+            // get every room of the group before touching the database
+            int[] hotelIDs = new int[count];
+            int[] roomNumbers = new int[count];
+            String[] dates = new String[count];
+            for (int i = 0; i < count; i++) {
+                prompt("\tRoom " + (i + 1) + " of " + count + "\n");
+                prompt("\tEnter hotelID: ");
+                hotelIDs[i] = checkInt();
+                prompt("\tEnter room number: ");
+                roomNumbers[i] = checkInt();
+                prompt("\tEnter booking date (MM-dd-yyyy): ");
+                dates[i] = in.readLine();
+                if (!checkDate(dates[i])) {
+                    System.err.println("Invalid date format! Please enter as 'MM-dd-yyyy'.");
+                    OperationEvent.outcome("rejected");
+                    return;
+                }
+            }
+
+            // Check and book all rooms at once
+            List<List<String>> result = esql.bookRoomGroup(customerID, hotelIDs, roomNumbers, dates);
+            if (!result.isEmpty() && result.get(0).get(0).equals("conflict")) {
+                System.out.println("No room was booked. These rooms are not available:");
+                OperationEvent.outcome("rejected");
+                for (List<String> row : result) {
+                    System.out.println(" --> Hotel ID: " + row.get(1) + ", Room Number: " + row.get(2)
+                            + ", Date: " + row.get(3));
+                }
+                return;
             }
+
+            int total = 0;
+            System.out.println("Booking successfully! " + result.size() + " rooms booked:");
+            for (List<String> row : result) {
+                total += Integer.parseInt(row.get(4));
+                System.out.println(" --> Hotel ID: " + row.get(1) + ", Room Number: " + row.get(2)
+                        + ", Date: " + row.get(3) + ", Room price: $" + row.get(4));
+            }
+            System.out.println("Total price: $" + total);
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -611,55 +1427,44 @@ public class Hotel {
             // Get manager ID
             int managerID = Integer.parseInt(userID);
 
-            System.out.print("\tEnter hotelID: ");
+            prompt("\tEnter hotelID: ");
             int hotelID = checkInt();
-            System.out.print("\tEnter room number: ");
+            OperationEvent.hotel(hotelID);
+            prompt("\tEnter room number: ");
             int roomNumber = checkInt();
 
             // Check if the manager manages the hotel with the given hotelID
-            String managerCheckQuery = String.format(
-                    "SELECT * FROM Hotel WHERE hotelID = %d AND managerUserID = %d",
-                    hotelID, managerID
-            );
-            int managerCheck = esql.executeQuery(managerCheckQuery);
-
-            if (managerCheck > 0) {
+            if (esql.managesHotel(managerID, hotelID)) {
                 // Manager can update the room information
                 // Get current room information
-                String currentInfoQuery = String.format(
-                        "SELECT price, imageURL FROM Rooms WHERE hotelID = %d AND roomNumber = %d",
-                        hotelID, roomNumber
-                );
-                List<List<String>> currentInfoResult = esql.executeQueryAndReturnResult(currentInfoQuery);
+                String currentInfoQuery = String.format(ROOM_INFO_QUERY, hotelID, roomNumber);
+                ResultTable currentInfoResult = esql.executeQueryAndReturnTable(hotelID, currentInfoQuery);
                 // not sure if old info is needed
-                int oldPrice = Integer.parseInt(currentInfoResult.get(0).get(0));
-                String oldImageURL = currentInfoResult.get(0).get(1);
+                int oldPrice = currentInfoResult.getInt(0, 0);
+                String oldImageURL = currentInfoResult.getString(0, 1);
 
                 // Get the new room information
-                System.out.print("\tEnter new price: ");
+                prompt("\tEnter new price: ");
                 int newPrice = checkInt();
-                System.out.print("\tEnter new image URL: ");
+                prompt("\tEnter new image URL: ");
                 String newImageURL = in.readLine();
 
                 // Update room information in the Rooms table
-                String updateRoomQuery = String.format(
-                        "UPDATE Rooms SET price = %d, imageURL = '%s' WHERE hotelID = %d AND roomNumber = %d",
-                        newPrice, newImageURL, hotelID, roomNumber
-                );
-                esql.executeUpdate(updateRoomQuery);
+                esql.executePreparedUpdate(hotelID, UPDATE_ROOM_QUERY,
+                        Integer.valueOf(newPrice), newImageURL, Integer.valueOf(hotelID), Integer.valueOf(roomNumber));
 
                 // Log the update in the RoomUpdatesLog table
                 // Trigger here
                 String updateLogQuery = String.format(
-                        "INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) " +
-                                "VALUES (%d, %d, %d, 'NOW()')",
-                        managerID, hotelID, roomNumber
-                );
-                esql.executeUpdate(updateLogQuery);
+                        INSERT_ROOM_UPDATE_LOG_QUERY, managerID, hotelID, roomNumber);
+                esql.executeUpdate(hotelID, updateLogQuery);
 
                 System.out.println("Room information updated successfully!");
+            } else {
+                OperationEvent.outcome("rejected");
             }
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -670,12 +1475,9 @@ public class Hotel {
             int managerID = Integer.parseInt(userID);
 
             // Fetch the last 5 recent updates for the hotel
-            String recentUpdatesQuery = String.format(
-                    "SELECT * FROM RoomUpdatesLog " +
-                            "WHERE managerID = %d ORDER BY updatedOn DESC LIMIT 5",
-                    managerID
-            );
-            List<List<String>> recentUpdates = esql.executeQueryAndReturnResult(recentUpdatesQuery);
+            String recentUpdatesQuery = String.format(RECENT_UPDATES_QUERY, managerID);
+            List<List<String>> recentUpdates = esql.executeQueryAndReturnResultFromAllShards(
+                    recentUpdatesQuery, byColumn(4, false, true), 5);
 
             if (recentUpdates.isEmpty()) {
                 System.out.println("No recent updates found.");
@@ -691,6 +1493,7 @@ public class Hotel {
             }
 
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -702,31 +1505,27 @@ public class Hotel {
 
             // Retrieve the last 5 recent bookings of the customer from the RoomBookings table
             // TODO: check this query cause I am not sure if it is correct
-            String bookingHistoryQuery = String.format(
-                    "SELECT RB.hotelID, RB.roomNumber, R.price, RB.bookingDate " +
-                            "FROM RoomBookings RB, Rooms R " +
-                            "WHERE RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber AND RB.customerID = %d " +
-                            "ORDER BY RB.bookingDate DESC LIMIT 5",
-                    customerID
-            );
-            List<List<String>> bookingHistoryResult = esql.executeQueryAndReturnResult(bookingHistoryQuery);
-
-            // Display the booking history
+            String bookingHistoryQuery = String.format(CUSTOMER_BOOKINGS_QUERY, customerID);
+            List<ResultTable> bookingHistoryResult = esql.executeQueryAndReturnTablesFromAllShards(bookingHistoryQuery);
+
+            // Display the booking history with the price each booking was charged
             System.out.println("**************** Your last 5 recent bookings: ****************");
-            for (List<String> booking : bookingHistoryResult) {
-                String hotelID = booking.get(0);
-                String roomNumber = booking.get(1);
-                String billingInfo = booking.get(2);
-                String bookingDate = booking.get(3);
+            for (long at : ResultTable.merge(bookingHistoryResult, 2, true, 5)) {
+                ResultTable booking = bookingHistoryResult.get((int) (at >>> 32));
+                int row = (int) at;
+                int hotelID = booking.getInt(row, 0);
+                int roomNumber = booking.getInt(row, 1);
+                int price = booking.getInt(row, 3);
 
                 System.out.println(
                         " --> Hotel ID: " + hotelID
                                 + ", Room Number: " + roomNumber
-                                + ", Billing information: " + billingInfo
-                                + ", Booking Date: " + bookingDate
+                                + ", Billing information: $" + price
+                                + ", Booking Date: " + booking.getString(row, 2)
                 );
             }
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -734,51 +1533,46 @@ public class Hotel {
     public static void viewBookingHistoryofHotel(Hotel esql) {
         try {
             // Get the range of dates from the manager
-            System.out.print("\tEnter the start date (MM-dd-yyyy): ");
+            prompt("\tEnter the start date (MM-dd-yyyy): ");
             String beginDate = in.readLine();
-            System.out.print("\tEnter the end date (MM-dd-yyyy): ");
+            prompt("\tEnter the end date (MM-dd-yyyy): ");
             String endDate = in.readLine();
 
             // check the date input
-            SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy");
-            dateFormat.setLenient(false);
-
-            try {
-                Date begin = dateFormat.parse(beginDate);
-                Date end = dateFormat.parse(endDate);
-            } catch (Exception e) {
+            if (!checkDate(beginDate) || !checkDate(endDate)) {
                 System.err.println("Invalid date format.");
+                OperationEvent.outcome("rejected");
                 return;
             }
 
             // Retrieve the booking information from the RoomBookings table within the date range
             // TODO: check this query cause I am not sure if it is correct as customerID in RoomBookings is int and userID in Users is string
-            String bookingQuery = String.format(
-                    "SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate " +
-                            "FROM RoomBookings RB, Users U " +
-                            "WHERE RB.customerID = U.userID AND RB.bookingDate BETWEEN '%s' AND '%s' " +
-                            "ORDER BY RB.bookingDate",
-                    beginDate, endDate
-            );
-            List<List<String>> bookingResult = esql.executeQueryAndReturnResult(bookingQuery);
+            String bookingQuery = String.format(HOTEL_BOOKINGS_QUERY, beginDate, endDate);
+            // the report can be large, so rows stay in their typed shard tables
+            List<ResultTable> bookingResult = esql.executeQueryAndReturnTablesFromAllShards(bookingQuery);
 
             // Display the booking information
             System.out.println("**************** Booking information: ****************");
-            for (List<String> booking : bookingResult) {
-                String bookingID = booking.get(0);
-                String customerName = booking.get(1);
-                String hotelID = booking.get(2);
-                String roomNumber = booking.get(3);
-                String bookingDate = booking.get(4);
+            for (long at : ResultTable.merge(bookingResult, 4, false, 0)) {
+                ResultTable booking = bookingResult.get((int) (at >>> 32));
+                int row = (int) at;
+                int bookingID = booking.getInt(row, 0);
+                String customerName = booking.getString(row, 1);
+                int hotelID = booking.getInt(row, 2);
+                int roomNumber = booking.getInt(row, 3);
+                String bookingDate = booking.getString(row, 4);
+                int price = booking.getInt(row, 5);
 
                 System.out.println(" --> Booking ID: " + bookingID
                         + ", Customer Name: " + customerName
                         + ", Hotel ID: " + hotelID
                         + ", Room Number: " + roomNumber
                         + ", Booking Date: " + bookingDate
+                        + ", Price: $" + price
                 );
             }
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -789,32 +1583,21 @@ public class Hotel {
             int managerID = Integer.parseInt(userID);
 
             // Get the hotelID from the manager
-            System.out.print("\tEnter the hotel ID: ");
+            prompt("\tEnter the hotel ID: ");
             int hotelID = checkInt();
+            OperationEvent.hotel(hotelID);
 
             // Check if the manager is managing the given hotel
-            String hotelQuery = String.format(
-                    "SELECT * FROM Hotel WHERE hotelID = %d AND managerUserID = %d",
-                    hotelID, managerID
-            );
-            int hotelCount = esql.executeQuery(hotelQuery);
-
-            if (hotelCount == 0) {
+            if (!esql.managesHotel(managerID, hotelID)) {
                 System.out.println("You do not manage this hotel.");
+                OperationEvent.outcome("rejected");
                 return;
             }
 
             // Retrieve the top 5 customers with the most bookings in the given hotel
             // TODO: check this query cause I am not sure if it is correct as customerID in RoomBookings is int and userID in Users is string
-            String customerQuery = String.format(
-                    "SELECT U.userID, U.name, COUNT(RB.bookingID) as bookings " +
-                            "FROM Users U, RoomBookings RB " +
-                            "WHERE U.userID = RB.customerID AND RB.hotelID = %d " +
-                            "GROUP BY U.userID, U.name " +
-                            "ORDER BY bookings DESC LIMIT 5",
-                    hotelID
-            );
-            List<List<String>> customerResult = esql.executeQueryAndReturnResult(customerQuery);
+            String customerQuery = String.format(REGULAR_CUSTOMERS_QUERY, hotelID);
+            List<List<String>> customerResult = esql.executeQueryAndReturnResult(hotelID, customerQuery);
 
             // Display the top 5 customers
             System.out.println("******* Top 5 regular customers: ********");
@@ -829,6 +1612,7 @@ public class Hotel {
                 );
             }
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -839,22 +1623,18 @@ public class Hotel {
             int managerID = Integer.parseInt(userID);
 
             // Get the hotelID, roomNumber, and companyID from the manager
-            System.out.print("\tEnter the hotel ID: ");
+            prompt("\tEnter the hotel ID: ");
             int hotelID = checkInt();
-            System.out.print("\tEnter the room number: ");
+            OperationEvent.hotel(hotelID);
+            prompt("\tEnter the room number: ");
             int roomNumber = checkInt();
-            System.out.print("\tEnter the company ID: ");
+            prompt("\tEnter the company ID: ");
             int companyID = checkInt();
 
             // Check if the manager is managing the given hotel
-            String hotelQuery = String.format(
-                    "SELECT * FROM Hotel WHERE hotelID = %d AND managerUserID = %d",
-                    hotelID, managerID
-            );
-            int hotelCount = esql.executeQuery(hotelQuery);
-
-            if (hotelCount == 0) {
+            if (!esql.managesHotel(managerID, hotelID)) {
                 System.out.println("You do not manage this hotel.");
+                OperationEvent.outcome("rejected");
                 return;
             }
 
@@ -865,29 +1645,22 @@ public class Hotel {
             // Insert the repair into the RoomRepairs table
             // Trigger here
             String insertRepairQuery = String.format(
-                    "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (%d, %d, %d, '%s')",
-                    companyID, hotelID, roomNumber, currentDate
-            );
-            esql.executeUpdate(insertRepairQuery);
+                    INSERT_REPAIR_QUERY, companyID, hotelID, roomNumber, currentDate);
+            esql.executeUpdate(hotelID, insertRepairQuery);
 
             // Get the inserted repair's repairID
-            String repairIDQuery = String.format(
-                    "SELECT repairID FROM RoomRepairs WHERE companyID = %d AND hotelID = %d AND roomNumber = %d ORDER BY repairID DESC LIMIT 1",
-                    companyID, hotelID, roomNumber
-            );
-            int repairID = Integer.parseInt(esql.executeQueryAndReturnResult(repairIDQuery).get(0).get(0));
+            String repairIDQuery = String.format(LAST_REPAIR_ID_QUERY, companyID, hotelID, roomNumber);
+            int repairID = esql.executeQueryAndReturnTable(hotelID, repairIDQuery).getInt(0, 0);
 
             // Insert the repair request into the RoomRepairRequests table
             //Trigger here
-            String insertRequestQuery = String.format(
-                    "INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%d, %d)",
-                    managerID, repairID
-            );
-            esql.executeUpdate(insertRequestQuery);
+            String insertRequestQuery = String.format(INSERT_REPAIR_REQUEST_QUERY, managerID, repairID);
+            esql.executeUpdate(hotelID, insertRequestQuery);
 
             System.out.println("Repair request placed successfully.");
 
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
@@ -898,34 +1671,100 @@ public class Hotel {
             int managerID = Integer.parseInt(userID);
 
             // Fetch room repair history for the hotels
-            String repairHistoryQuery = String.format(
-                    "SELECT RR.companyID, RR.hotelID, RR.roomNumber, RR.repairDate " +
-                            "FROM RoomRepairs RR " +
-                            "JOIN RoomRepairRequests RRR ON RR.repairID = RRR.repairID " +
-                            "JOIN Hotel H ON RR.hotelID = H.hotelID " +
-                            "WHERE H.managerUserID = %d " +
-                            "ORDER BY RR.repairDate DESC",
-                    managerID
-            );
-
-            List<List<String>> repairHistory = esql.executeQueryAndReturnResult(repairHistoryQuery);
-
-            if (repairHistory.isEmpty()) {
+            String repairHistoryQuery = String.format(REPAIR_HISTORY_QUERY, managerID);
+
+            List<ResultTable> repairHistory = esql.executeQueryAndReturnTablesFromAllShards(repairHistoryQuery);
+            long[] order = ResultTable.merge(repairHistory, 3, true, 0);
+
+            if (order.length == 0) {
                 System.out.println("No room repair history found.");
                 return;
             }
 
             // Display the repair history
-            System.out.println("Company ID | Hotel ID | Room No. | Repair Date");
-            for (List<String> row : repairHistory) {
-                System.out.println(row.get(0) + " | " + row.get(1) + " | " + row.get(2) + " | " + row.get(3));
+            System.out.println("Company ID | Hotel ID | Room No. | Repair Date | Status");
+            for (long at : order) {
+                ResultTable repairs = repairHistory.get((int) (at >>> 32));
+                int row = (int) at;
+                System.out.println(repairs.getString(row, 0) + " | " + repairs.getInt(row, 1) + " | " +
+                        repairs.getInt(row, 2) + " | " + repairs.getString(row, 3) + " | " + repairs.getString(row, 4));
             }
 
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
     }
 
+    public static void viewOccupancyReport(Hotel esql, String userID) {
+        try {
+            // Get the manager ID
+            int managerID = Integer.parseInt(userID);
+
+            prompt("\tEnter the hotel ID (0 for all hotels you manage): ");
+            int hotelID = checkInt();
+            prompt("\tEnter the first month (MM-yyyy): ");
+            int firstMonth = BookingAnalytics.parseMonth(in.readLine());
+            prompt("\tEnter the last month (MM-yyyy): ");
+            int lastMonth = BookingAnalytics.parseMonth(in.readLine());
+
+            // Managers only see the hotels they manage
+            Set<Integer> hotels = new HashSet<Integer>();
+            if (hotelID != 0) {
+                if (!esql.managesHotel(managerID, hotelID)) {
+                    System.out.println("You do not manage this hotel.");
+                    OperationEvent.outcome("rejected");
+                    return;
+                }
+                OperationEvent.hotel(hotelID);
+                hotels.add(hotelID);
+            } else {
+                String hotelsQuery = String.format(MANAGED_HOTELS_QUERY, managerID);
+                for (List<String> row : esql.executeQueryAndReturnResultFromAllShards(hotelsQuery, null, 0))
+                    hotels.add(Integer.valueOf(row.get(0)));
+            }
+
+            // Only the bookings made since the last report are read from the database
+            _analytics.refresh(esql);
+            BookingAnalytics.Row[] report = _analytics.hotelMonthReport(hotels, firstMonth, lastMonth);
+            if (report.length == 0) {
+                System.out.println("No hotel found for this report.");
+                return;
+            }
+
+            System.out.println("Hotel ID | Month | Rooms | Bookings | Occupancy | Revenue | Repair days");
+            for (BookingAnalytics.Row row : report) {
+                System.out.println(String.format("%d | %s | %d | %d | %.1f%% | $%d | %d",
+                        row.hotelID, row.monthLabel(), row.rooms, row.bookings,
+                        row.occupancy() * 100, row.revenue, row.repairDays));
+            }
+
+            // A single hotel and month is broken down per room
+            if (hotelID != 0 && firstMonth == lastMonth) {
+                System.out.println("Room No. | Bookings | Revenue | Repair days");
+                for (BookingAnalytics.Row row : _analytics.roomReport(hotelID, firstMonth)) {
+                    System.out.println(row.roomNumber + " | " + row.bookings + " | $" + row.revenue + " | " + row.repairDays);
+                }
+            }
+        } catch (Exception e) {
+            OperationEvent.outcome("error");
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /*
+     *  Check that the input is a date as 'MM-dd-yyyy' and nothing else, so that it
+     *  can be formatted into a query
+     * */
+    public static boolean checkDate(String input) {
+        if (input == null)
+            return false;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy");
+        dateFormat.setLenient(false);
+        ParsePosition position = new ParsePosition(0);
+        return dateFormat.parse(input, position) != null && position.getIndex() == input.length();
+    }
+
     /*
      *  Read the input from keyboard and check if the input contains integer 0 to 9 only
      * */
@@ -951,6 +1790,7 @@ public class Hotel {
             } while (valid);
             intInput = Integer.parseInt(input);
         } catch (Exception e) {
+            OperationEvent.outcome("error");
             System.err.println(e.getMessage());
         }
         return intInput;
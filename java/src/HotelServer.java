@@ -0,0 +1,504 @@
+/*
+ * Hotel Server
+ * =============================
+ *
+ * Serves the customer and manager operations of the menu over TCP, to many
+ * terminals at once from one process.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One selector thread reads requests from every client and writes the
+ * responses; the operations run on a fixed pool of workers, each borrowing
+ * one of as many Hotel objects (and so database connections) while it runs.
+ * Which waiting operation gets the next worker, and for how long, is up to
+ * the AdmissionController, whose metrics are printed every minute.
+ * The operations are the menu methods of Hotel, which read their input from
+ * the request and print into the response (see Terminal).
+ * <p>
+ * A request is one line of tab separated fields:
+ * <pre>
+ * requestID  token  operation  input...
+ * </pre>
+ * where the inputs are what the console would ask for, in the same order,
+ * and the token is "-" for CreateUser and LogIn. LogIn answers with a line
+ * "token, userType"; the token then stands for the user until LogOut or until
+ * it has not been used for server.sessionIdleMinutes. A client may send
+ * further requests before the answers arrive. Their responses come back as
+ * they finish, not necessarily in order:
+ * <pre>
+ * requestID  status  lineCount
+ * ...lineCount lines printed by the operation...
+ * </pre>
+ * with status ok, rejected or error as the operation ended, or one of
+ * timeout (the operation waited longer than its class allows, or ran so
+ * long that one of its statements was canceled), busy
+ * (the queue of its class is full, try again later), denied (unknown or
+ * expired token, or an operation of managers for a customer), unknown (no
+ * such operation) and bad (malformed request).
+ */
+public class HotelServer {
+
+    static final String[] CUSTOMER_OPERATIONS = {
+            "viewHotels", "viewRooms", "bookRooms", "viewRecentBookingsfromCustomer", "bookRoomGroup"
+    };
+    static final String[] MANAGER_OPERATIONS = {
+            "updateRoomInfo", "viewRecentUpdates", "viewBookingHistoryofHotel", "viewRegularCustomers",
+            "placeRoomRepairRequests", "viewRoomRepairHistory", "viewOccupancyReport"
+    };
+
+    // operations running at the same time, one database connection each
+    private static final int WORKERS = Integer.getInteger("server.workers", 8);
+
+    // unanswered requests per client before the server stops reading from it
+    private static final int PIPELINE = Integer.getInteger("server.pipeline", 32);
+
+    private static final long SESSION_IDLE_MILLIS = Long.getLong("server.sessionIdleMinutes", 30) * 60000;
+
+    private static final int MAX_LINE = Integer.getInteger("server.maxLine", 1 << 16);
+
+    private final BlockingQueue<Hotel> hotels;
+    private final ThreadPoolExecutor workers;
+    private final AdmissionController admission;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final SecureRandom random = new SecureRandom();
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+
+    // clients whose interest in reading or writing changed on a worker
+    private final ConcurrentLinkedQueue<Client> changed = new ConcurrentLinkedQueue<Client>();
+    private volatile boolean running = true;
+
+    static class Session {
+        final String userID;
+        final String userType;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Session(String userID, String userType) {
+            this.userID = userID;
+            this.userType = userType;
+        }
+
+        boolean isManager() {
+            return !userType.contains("customer");
+        }
+    }
+
+    /*
+     * A connected terminal: the bytes of its next request, its answers not
+     * written yet and how many of its requests are not answered.
+     */
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        int unanswered = 0;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Connects the workers and listens on the given port.
+     */
+    public HotelServer(String dbname, String dbport, String user, int listenPort) throws IOException, java.sql.SQLException {
+        this.hotels = new ArrayBlockingQueue<Hotel>(WORKERS);
+        for (int i = 0; i < WORKERS; i++)
+            hotels.add(new Hotel(dbname, dbport, user, ""));
+        // the admission controller queues the requests and never starts more than WORKERS
+        this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.admission = new AdmissionController(workers, WORKERS);
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        this.listener.bind(new InetSocketAddress(listenPort));
+        this.listener.configureBlocking(false);
+        this.listener.register(selector, SelectionKey.OP_ACCEPT);
+        Terminal.install();
+    }
+
+    /**
+     * Serves clients until close() is called.
+     */
+    public void serve() throws IOException {
+        long sweptAt = System.currentTimeMillis();
+        while (running) {
+            selector.select(1000);
+            for (Client client; (client = changed.poll()) != null; )
+                updateInterest(client);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else {
+                        if (key.isReadable())
+                            read((Client) key.attachment());
+                        if (key.isValid() && key.isWritable())
+                            write((Client) key.attachment());
+                    }
+                } catch (IOException e) {
+                    close((Client) key.attachment());
+                }
+            }
+
+            if (System.currentTimeMillis() - sweptAt > 60000) {
+                sweptAt = System.currentTimeMillis();
+                Iterator<Session> all = sessions.values().iterator();
+                while (all.hasNext())
+                    if (sweptAt - all.next().lastUsed > SESSION_IDLE_MILLIS)
+                        all.remove();
+                String report = admission.report();
+                if (report != null)
+                    System.out.print(report);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+    }
+
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.in) < 0) {
+            close(client);
+            return;
+        }
+        client.in.flip();
+        int start = 0;
+        for (int i = client.in.position(); i < client.in.limit(); i++) {
+            if (client.in.get(i) != '\n')
+                continue;
+            int end = i > start && client.in.get(i - 1) == '\r' ? i - 1 : i;
+            byte[] line = new byte[end - start];
+            client.in.position(start);
+            client.in.get(line);
+            request(client, new String(line, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+        client.in.position(start);
+        client.in.compact();
+        if (!client.in.hasRemaining()) {
+            answer(client, "-", "bad", "request longer than " + MAX_LINE + " bytes");
+            close(client);
+        }
+    }
+
+    private void write(Client client) throws IOException {
+        synchronized (client) {
+            while (!client.out.isEmpty()) {
+                client.channel.write(client.out.peek());
+                if (client.out.peek().hasRemaining())
+                    break;
+                client.out.poll();
+            }
+        }
+        updateInterest(client);
+    }
+
+    /*
+     * Reads while the client has room for more unanswered requests, writes
+     * while it has answers left.
+     */
+    private void updateInterest(Client client) {
+        SelectionKey key = client.channel.keyFor(selector);
+        if (key == null || !key.isValid())
+            return;
+        synchronized (client) {
+            key.interestOps((client.unanswered < PIPELINE ? SelectionKey.OP_READ : 0)
+                    | (client.out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+    }
+
+    private void close(Client client) {
+        if (client == null)
+            return;
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // ignored.
+        }
+    }
+
+    /*
+     * Checks a request on the selector thread and hands it to a worker.
+     */
+    private void request(final Client client, String line) {
+        if (line.isEmpty())
+            return;
+        final String[] fields = line.split("\t", -1);
+        if (fields.length < 3) {
+            answer(client, fields[0], "bad", "expected requestID, token and operation");
+            return;
+        }
+        final String requestID = fields[0];
+        final String operation = fields[2];
+        final String[] input = Arrays.copyOfRange(fields, 3, fields.length);
+
+        final Session session;
+        if (operation.equals("CreateUser") || operation.equals("LogIn")) {
+            session = null;
+        } else {
+            session = sessions.get(fields[1]);
+            if (session == null || System.currentTimeMillis() - session.lastUsed > SESSION_IDLE_MILLIS) {
+                sessions.remove(fields[1]);
+                answer(client, requestID, "denied", "not logged in");
+                return;
+            }
+            session.lastUsed = System.currentTimeMillis();
+            if (operation.equals("LogOut")) {
+                sessions.remove(fields[1]);
+                answer(client, requestID, "ok", "");
+                return;
+            }
+            if (!Arrays.asList(CUSTOMER_OPERATIONS).contains(operation)) {
+                if (!Arrays.asList(MANAGER_OPERATIONS).contains(operation)) {
+                    answer(client, requestID, "unknown", "no operation " + operation);
+                    return;
+                }
+                if (!session.isManager()) {
+                    answer(client, requestID, "denied", operation + " is for managers");
+                    return;
+                }
+            }
+        }
+
+        synchronized (client) {
+            client.unanswered++;
+        }
+        boolean taken = admission.submit(operation, new AdmissionController.Operation() {
+            public void run() {
+                // there are as many Hotel objects as workers, but the one of the
+                // operation before may not be back yet when its slot is taken
+                long borrowing = System.nanoTime();
+                Hotel esql;
+                try {
+                    esql = hotels.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    answered(client);
+                    answer(client, requestID, "busy", "");
+                    return;
+                }
+                long waited = AdmissionController.queuedNanos() + System.nanoTime() - borrowing;
+                final Hotel borrowed = esql;
+                Runnable giveBack = new Runnable() {
+                    public void run() {
+                        hotels.add(borrowed);
+                    }
+                };
+                boolean givenBack = false;
+                String token = null;
+                String status = "error";
+                String output = "";
+                try {
+                    Terminal.bind(input);
+                    OperationEvent.start(operation, session == null ? null : session.userType, waited);
+                    try {
+                        token = perform(esql, session, operation);
+                    } finally {
+                        status = OperationEvent.finish();
+                        // the connection goes back once no cancel can reach its next user; when one
+                        // may still be on its way it is probed on another thread, not this worker
+                        givenBack = true;
+                        if (Deadline.current().finish(giveBack))
+                            status = "timeout";
+                        output = Terminal.unbind();
+                    }
+                } finally {
+                    if (!givenBack)
+                        hotels.add(esql);
+                    answered(client);
+                    answer(client, requestID, status, token != null ? token : output);
+                }
+            }
+
+            public void expired() {
+                answered(client);
+                answer(client, requestID, "timeout", "");
+            }
+        });
+        if (!taken) {
+            answered(client);
+            answer(client, requestID, "busy", "");
+        }
+    }
+
+    private static void answered(Client client) {
+        synchronized (client) {
+            client.unanswered--;
+        }
+    }
+
+    /*
+     * Runs a menu method for the session on a worker.
+     *
+     * @return the answer to a successful LogIn, null for every other operation
+     */
+    private String perform(Hotel esql, Session session, String operation) {
+        switch (operation) {
+            case "CreateUser":
+                Hotel.CreateUser(esql);
+                return null;
+            case "LogIn":
+                return logIn(esql);
+            case "viewHotels":
+                Hotel.viewHotels(esql);
+                return null;
+            case "viewRooms":
+                Hotel.viewRooms(esql);
+                return null;
+            case "bookRooms":
+                Hotel.bookRooms(esql, session.userID);
+                return null;
+            case "viewRecentBookingsfromCustomer":
+                Hotel.viewRecentBookingsfromCustomer(esql, session.userID);
+                return null;
+            case "bookRoomGroup":
+                Hotel.bookRoomGroup(esql, session.userID);
+                return null;
+            case "updateRoomInfo":
+                Hotel.updateRoomInfo(esql, session.userID);
+                return null;
+            case "viewRecentUpdates":
+                Hotel.viewRecentUpdates(esql, session.userID);
+                return null;
+            case "viewBookingHistoryofHotel":
+                Hotel.viewBookingHistoryofHotel(esql);
+                return null;
+            case "viewRegularCustomers":
+                Hotel.viewRegularCustomers(esql, session.userID);
+                return null;
+            case "placeRoomRepairRequests":
+                Hotel.placeRoomRepairRequests(esql, session.userID);
+                return null;
+            case "viewRoomRepairHistory":
+                Hotel.viewRoomRepairHistory(esql, session.userID);
+                return null;
+            case "viewOccupancyReport":
+                Hotel.viewOccupancyReport(esql, session.userID);
+                return null;
+            default:
+                System.err.println("no operation " + operation);
+                OperationEvent.outcome("error");
+                return null;
+        }
+    }
+
+    private String logIn(Hotel esql) {
+        String userID = Hotel.LogIn(esql);
+        if (userID == null)
+            return null;
+        try {
+            String userType = esql.executePreparedQuery(Hotel.USER_TYPE_QUERY, Integer.valueOf(userID))
+                    .getString(0, 0).trim().toLowerCase();
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            sessions.put(token, new Session(userID.trim(), userType));
+            return token + "\t" + userType;
+        } catch (Exception e) {
+            OperationEvent.outcome("error");
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Queues the answer to a request; the selector thread writes it.
+     */
+    private void answer(Client client, String requestID, String status, String output) {
+        String[] lines = output.isEmpty() ? new String[0] : output.replace("\r", "").split("\n");
+        StringBuilder response = new StringBuilder();
+        response.append(requestID).append('\t').append(status).append('\t').append(lines.length).append('\n');
+        for (String line : lines)
+            response.append(line).append('\n');
+        synchronized (client) {
+            client.out.add(ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        changed.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops serving and disconnects the workers.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        admission.close();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // ignored.
+        }
+        for (Hotel esql : hotels)
+            esql.cleanup();
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // ignored.
+        }
+    }
+
+    /**
+     * Usage: HotelServer &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;listen port&gt;
+     */
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.err.println("Usage: java [-Dserver.workers=8] [-Dserver.pipeline=32] [-Dadmission.queue=64] "
+                    + "[-Dserver.sessionIdleMinutes=30] HotelServer <dbname> <port> <user> <listen port>");
+            return;
+        }
+        try {
+            Class.forName("org.postgresql.Driver");
+            final HotelServer server = new HotelServer(args[0], args[1], args[2], Integer.parseInt(args[3]));
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    server.close();
+                }
+            });
+            System.out.println("Serving on port " + args[3] + " with " + WORKERS + " workers");
+            server.serve();
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
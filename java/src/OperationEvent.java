@@ -0,0 +1,131 @@
+/*
+ * Operation Event
+ * =============================
+ *
+ * Flight recorder event for one menu operation.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Spans one menu operation, so that the query events, GC pauses and lock
+ * waits of a recording can be attributed to it. The event of the running
+ * operation is kept per thread; the menu methods only add the hotel and the
+ * outcome. When no recording asks for the event only the outcome is kept,
+ * which HotelServer reports back.
+ */
+@Name("hotel.Operation")
+@Label("Hotel Operation")
+@Category("Hotel")
+@Description("A menu operation, from choosing it until its result is printed")
+@StackTrace(false)
+public class OperationEvent extends Event {
+
+    private static final ThreadLocal<OperationEvent> CURRENT = new ThreadLocal<OperationEvent>();
+
+    private static final ThreadLocal<String> OUTCOME = new ThreadLocal<String>();
+
+    @Label("Operation")
+    String operation;
+
+    @Label("User Type")
+    String userType;
+
+    @Label("Hotel ID")
+    @Description("The hotel the operation is about, -1 when there is none")
+    int hotelID = -1;
+
+    @Label("Outcome")
+    @Description("ok, rejected (refused for a reason the user can fix) or error")
+    String outcome = "ok";
+
+    @Label("Connection Wait")
+    @Description("Time the operation waited for a worker and a connection before it started")
+    @Timespan(Timespan.NANOSECONDS)
+    long wait;
+
+    /**
+     * Starts the event of an operation on this thread.
+     *
+     * @param operation name of the menu method
+     * @param userType customer or manager, null before logging in
+     */
+    public static void start(String operation, String userType) {
+        start(operation, userType, 0);
+    }
+
+    /**
+     * Starts the event of an operation on this thread that waited for its
+     * connection.
+     *
+     * @param waitNanos how long it waited in the admission queue and for a connection
+     */
+    public static void start(String operation, String userType, long waitNanos) {
+        OUTCOME.set("ok");
+        OperationEvent event = new OperationEvent();
+        if (!event.isEnabled()) {
+            CURRENT.remove();
+            return;
+        }
+        event.operation = operation;
+        event.userType = userType == null ? null : userType.trim().toLowerCase();
+        event.wait = waitNanos;
+        event.begin();
+        CURRENT.set(event);
+    }
+
+    /**
+     * @param hotelID the hotel the running operation turned out to be about
+     */
+    public static void hotel(int hotelID) {
+        OperationEvent event = CURRENT.get();
+        if (event != null)
+            event.hotelID = hotelID;
+    }
+
+    /**
+     * Marks the running operation as not done: rejected, or error.
+     */
+    public static void outcome(String outcome) {
+        OUTCOME.set(outcome);
+        OperationEvent event = CURRENT.get();
+        if (event != null)
+            event.outcome = outcome;
+    }
+
+    /**
+     * @return the name of the operation running on this thread, or null
+     */
+    static String current() {
+        OperationEvent event = CURRENT.get();
+        return event == null ? null : event.operation;
+    }
+
+    /**
+     * Ends and records the event of the running operation.
+     *
+     * @return its outcome: ok, rejected or error
+     */
+    public static String finish() {
+        String outcome = OUTCOME.get();
+        OUTCOME.remove();
+        OperationEvent event = CURRENT.get();
+        if (event != null) {
+            CURRENT.remove();
+            event.end();
+            if (event.shouldCommit())
+                event.commit();
+        }
+        return outcome == null ? "ok" : outcome;
+    }
+}
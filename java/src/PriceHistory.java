@@ -0,0 +1,284 @@
+/*
+ * Price History
+ * =============================
+ *
+ * In-memory copy of RoomPriceHistory that answers "what did room R cost on
+ * day D" without a query, kept current by the change feed or by the change
+ * ids of its rows.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Every room has a time-ordered series of (effectiveOn, price) entries, stored
+ * as deltas to the previous entry with a full checkpoint every few entries, so
+ * a lookup is a binary search over the checkpoints followed by a short scan.
+ * Before its first entry a room is charged its first recorded price.
+ * <p>
+ * Everything is loaded on the first sync. After that, a room whose price
+ * changed is reloaded on the next sync: the change feed names the rooms, and
+ * when it is not running, or lost notifications, the rows written since the
+ * last sync are found by their changeID, from a Watermark per shard with a
+ * trailing window of prices.window ids.
+ */
+public class PriceHistory implements ChangeFeed.Listener {
+
+    static final String HISTORY_QUERY =
+            "SELECT hotelID, roomNumber, effectiveOn, price, changeID FROM RoomPriceHistory " +
+                    "ORDER BY hotelID, roomNumber, effectiveOn";
+    static final String ROOM_HISTORY_QUERY =
+            "SELECT hotelID, roomNumber, effectiveOn, price FROM RoomPriceHistory " +
+                    "WHERE hotelID = %d AND roomNumber = %d ORDER BY effectiveOn";
+    static final String CHANGES_QUERY =
+            "SELECT changeID, hotelID, roomNumber FROM RoomPriceHistory WHERE changeID > %d";
+
+    // change ids below the watermark of a shard that every sync reads again
+    private static final long WINDOW = Long.getLong("prices.window", 1000);
+
+    // entries between two full checkpoints of a series
+    private static final int CHECKPOINT_INTERVAL = 16;
+
+    /**
+     * The prices of one room.
+     */
+    static final class Series {
+        final int count;
+        final int[] checkpointDay;
+        final int[] checkpointPrice;
+        // where the entries after each checkpoint start in deltas
+        final int[] checkpointOffset;
+        // zigzag varints, day delta then price delta, of the entries that are not checkpoints
+        final byte[] deltas;
+
+        private Series(int count, int[] checkpointDay, int[] checkpointPrice, int[] checkpointOffset, byte[] deltas) {
+            this.count = count;
+            this.checkpointDay = checkpointDay;
+            this.checkpointPrice = checkpointPrice;
+            this.checkpointOffset = checkpointOffset;
+            this.deltas = deltas;
+        }
+
+        /**
+         * @param history rows of HISTORY_QUERY
+         * @param from first row of the room
+         * @param to row after the last row of the room
+         */
+        static Series of(ResultTable history, int from, int to) {
+            int count = to - from;
+            int checkpoints = (count + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+            int[] checkpointDay = new int[checkpoints];
+            int[] checkpointPrice = new int[checkpoints];
+            int[] checkpointOffset = new int[checkpoints];
+            byte[] deltas = new byte[count * 10];
+            int length = 0;
+            int day = 0;
+            int price = 0;
+            for (int i = 0; i < count; i++) {
+                int nextDay = (int) history.getEpochDay(from + i, 2);
+                int nextPrice = history.getInt(from + i, 3);
+                if (i % CHECKPOINT_INTERVAL == 0) {
+                    checkpointDay[i / CHECKPOINT_INTERVAL] = nextDay;
+                    checkpointPrice[i / CHECKPOINT_INTERVAL] = nextPrice;
+                    checkpointOffset[i / CHECKPOINT_INTERVAL] = length;
+                } else {
+                    length = writeVarint(deltas, length, nextDay - day);
+                    length = writeVarint(deltas, length, nextPrice - price);
+                }
+                day = nextDay;
+                price = nextPrice;
+            }
+            return new Series(count, checkpointDay, checkpointPrice, checkpointOffset, Arrays.copyOf(deltas, length));
+        }
+
+        int priceAt(long epochDay) {
+            int c = Arrays.binarySearch(checkpointDay, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, epochDay)));
+            if (c < 0)
+                c = Math.max(0, -c - 2);
+            int day = checkpointDay[c];
+            int price = checkpointPrice[c];
+            int position = checkpointOffset[c];
+            int end = Math.min(count, (c + 1) * CHECKPOINT_INTERVAL);
+            for (int i = c * CHECKPOINT_INTERVAL + 1; i < end; i++) {
+                long next = readVarint(deltas, position);
+                int dayDelta = (int) (next >> 32);
+                next = readVarint(deltas, (int) next);
+                int priceDelta = (int) (next >> 32);
+                position = (int) next;
+                if (day + dayDelta > epochDay)
+                    break;
+                day += dayDelta;
+                price += priceDelta;
+            }
+            return price;
+        }
+
+        private static int writeVarint(byte[] buffer, int position, int value) {
+            int zigzag = (value << 1) ^ (value >> 31);
+            while ((zigzag & ~0x7f) != 0) {
+                buffer[position++] = (byte) ((zigzag & 0x7f) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[position++] = (byte) zigzag;
+            return position;
+        }
+
+        // returns (value << 32) | position after the value
+        private static long readVarint(byte[] buffer, int position) {
+            int zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer[position++];
+                zigzag |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            int value = (zigzag >>> 1) ^ -(zigzag & 1);
+            return ((long) value << 32) | position;
+        }
+    }
+
+    private volatile ConcurrentHashMap<Long, Series> series = new ConcurrentHashMap<Long, Series>();
+    private final Set<Long> stale = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final List<ChangeFeed> feeds = new CopyOnWriteArrayList<ChangeFeed>();
+    private final List<Watermark> marks = new ArrayList<Watermark>();
+    private boolean loaded = false;
+
+    // set when the feed may have lost notifications; the next sync reads the changes by id
+    private volatile boolean missed = false;
+
+    public void attach(ChangeFeed feed) {
+        feeds.add(feed);
+        feed.addListener(this);
+    }
+
+    private boolean usable() {
+        for (ChangeFeed feed : feeds)
+            if (!feed.isListening())
+                return false;
+        return !feeds.isEmpty();
+    }
+
+    private static long roomKey(int hotelID, int roomNumber) {
+        return ((long) hotelID << 32) | (roomNumber & 0xffffffffL);
+    }
+
+    /**
+     * Brings the history up to date: everything on the first call, then the
+     * rooms that changed since the last call.
+     *
+     * @param esql where to read from
+     * @throws java.sql.SQLException when the history cannot be read
+     */
+    public synchronized void sync(Hotel esql) throws SQLException {
+        if (!loaded) {
+            load(esql);
+            return;
+        }
+        // changes that arrive while reading mark their rooms stale again
+        boolean catchUp = missed || !usable();
+        missed = false;
+        if (catchUp) {
+            stale.clear();
+            while (marks.size() < esql.shardCount())
+                marks.add(new Watermark(WINDOW));
+            List<String> queries = new ArrayList<String>();
+            for (Watermark mark : marks)
+                queries.add(String.format(CHANGES_QUERY, mark.from()));
+            List<ResultTable> changes = esql.executeQueriesAndReturnTablesFromAllShards(queries);
+            Set<Long> changed = new HashSet<Long>();
+            for (int s = 0; s < changes.size(); s++) {
+                ResultTable part = changes.get(s);
+                for (int r = 0; r < part.size(); r++)
+                    if (marks.get(s).add(part.getLong(r, 0)))
+                        changed.add(roomKey(part.getInt(r, 1), part.getInt(r, 2)));
+                marks.get(s).prune();
+            }
+            for (Long key : changed)
+                reload(esql, key);
+        }
+        for (Long key : stale) {
+            stale.remove(key);
+            reload(esql, key);
+        }
+    }
+
+    private void load(Hotel esql) throws SQLException {
+        missed = false;
+        stale.clear();
+        marks.clear();
+        ConcurrentHashMap<Long, Series> fresh = new ConcurrentHashMap<Long, Series>();
+        for (ResultTable history : esql.executeQueryAndReturnTablesFromAllShards(HISTORY_QUERY)) {
+            Watermark mark = new Watermark(WINDOW);
+            int from = 0;
+            for (int r = 1; r <= history.size(); r++) {
+                mark.add(history.getLong(r - 1, 4));
+                if (r < history.size() && history.getInt(r, 0) == history.getInt(from, 0)
+                        && history.getInt(r, 1) == history.getInt(from, 1))
+                    continue;
+                fresh.put(roomKey(history.getInt(from, 0), history.getInt(from, 1)), Series.of(history, from, r));
+                from = r;
+            }
+            mark.prune();
+            marks.add(mark);
+        }
+        series = fresh;
+        loaded = true;
+    }
+
+    private void reload(Hotel esql, long key) throws SQLException {
+        int hotelID = (int) (key >> 32);
+        ResultTable history = esql.executeQueryAndReturnTable(hotelID,
+                String.format(ROOM_HISTORY_QUERY, hotelID, (int) key));
+        if (history.isEmpty())
+            series.remove(key);
+        else
+            series.put(key, Series.of(history, 0, history.size()));
+    }
+
+    /**
+     * @return the price of the room on the day as of the last sync, or -1 if
+     * the room has no recorded price
+     */
+    public int priceAt(int hotelID, int roomNumber, long epochDay) {
+        Series prices = series.get(roomKey(hotelID, roomNumber));
+        return prices == null ? -1 : prices.priceAt(epochDay);
+    }
+
+    /**
+     * Looks up a single price, reading only the history of that room when the
+     * change feed is not running.
+     *
+     * @return the price of the room on the day, or -1 if the room has no recorded price
+     * @throws java.sql.SQLException when the history cannot be read
+     */
+    public int priceAt(Hotel esql, int hotelID, int roomNumber, long epochDay) throws SQLException {
+        if (usable()) {
+            sync(esql);
+            return priceAt(hotelID, roomNumber, epochDay);
+        }
+        ResultTable history = esql.executeQueryAndReturnTable(hotelID,
+                String.format(ROOM_HISTORY_QUERY, hotelID, roomNumber));
+        return history.isEmpty() ? -1 : Series.of(history, 0, history.size()).priceAt(epochDay);
+    }
+
+    public void onChange(String table, char operation, int hotelID, int roomNumber) {
+        if (table.equals("rooms"))
+            stale.add(roomKey(hotelID, roomNumber));
+    }
+
+    public void onResync() {
+        missed = true;
+    }
+}
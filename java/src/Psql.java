@@ -0,0 +1,84 @@
+/*
+ * Psql
+ * =============================
+ *
+ * Runs psql for the tools that need COPY, which the bundled JDBC driver does
+ * not support.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts psql against a local database with ON_ERROR_STOP, so that a failed
+ * statement fails the process. Data is exchanged through the standard input
+ * and output of the process; messages go to the console.
+ */
+class Psql {
+
+    private Psql() {
+    }
+
+    private static List<String> command(String dbname, String port, String user) {
+        List<String> command = new ArrayList<String>();
+        command.add("psql");
+        command.add("-h");
+        command.add("localhost");
+        command.add("-p");
+        command.add(port);
+        command.add("-U");
+        command.add(user);
+        command.add("-d");
+        command.add(dbname);
+        command.add("-q");
+        command.add("-X");
+        command.add("-v");
+        command.add("ON_ERROR_STOP=1");
+        return command;
+    }
+
+    /**
+     * Runs the commands one after the other in one session. Their data is
+     * read from the standard input of the process and written to its output.
+     */
+    static Process run(String dbname, String port, String user, String... commands) throws IOException {
+        List<String> command = command(dbname, port, user);
+        for (String c : commands) {
+            command.add("-c");
+            command.add(c);
+        }
+        return new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Runs a script, with its output on the console.
+     */
+    static Process script(String dbname, String port, String user, File script) throws IOException {
+        List<String> command = command(dbname, port, user);
+        command.add("-f");
+        command.add(script.getPath());
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Waits for psql to exit.
+     *
+     * @param what what it was doing, for the error message
+     * @throws java.io.IOException when psql failed
+     */
+    static void await(Process process, String what) throws IOException, InterruptedException {
+        if (process.waitFor() != 0)
+            throw new IOException("psql failed while " + what);
+    }
+}
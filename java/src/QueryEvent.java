@@ -0,0 +1,87 @@
+/*
+ * Query Event
+ * =============================
+ *
+ * Flight recorder event for one statement sent by the execute methods.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records the template of a statement, i.e. the SQL with its literals
+ * replaced by '?', so that the socket reads of the JDBC driver can be told
+ * apart in a recording. Statements that failed are recorded too, with the
+ * error. The template is only built when the event is recorded; otherwise an
+ * event costs a check of a flag.
+ */
+@Name("hotel.Query")
+@Label("Hotel Query")
+@Category("Hotel")
+@Description("A statement sent to the database")
+@StackTrace(false)
+public class QueryEvent extends Event {
+
+    private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w.$])-?\\d+(?:\\.\\d+)?");
+    private static final Pattern SPACE = Pattern.compile("\\s+");
+
+    @Label("Template")
+    String template;
+
+    @Label("Operation")
+    @Description("The menu operation the statement belongs to, if any")
+    String operation;
+
+    @Label("Row Count")
+    @Description("Rows returned or changed")
+    long rowCount;
+
+    @Label("Error")
+    @Description("SQL state and message of a statement that failed, null otherwise")
+    String error;
+
+    /**
+     * @return a started event, to be handed the statement with finish(), also
+     * when the statement failed
+     */
+    static QueryEvent start() {
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        return event;
+    }
+
+    void rows(long rows) {
+        rowCount = rows;
+    }
+
+    void failed(SQLException e) {
+        error = e.getSQLState() + ": " + e.getMessage();
+    }
+
+    void finish(String sql) {
+        end();
+        if (shouldCommit()) {
+            template = normalize(sql);
+            operation = OperationEvent.current();
+            commit();
+        }
+    }
+
+    static String normalize(String sql) {
+        String template = STRING.matcher(sql).replaceAll("'?'");
+        template = NUMBER.matcher(template).replaceAll("?");
+        return SPACE.matcher(template).replaceAll(" ").trim();
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * Query Plan Advisor
+ * =============================
+ *
+ * Runs every SQL template behind the Hotel menu operations through
+ * EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON), keeps a baseline per data scale,
+ * and reports sequential scans, plan shape changes, cost regressions and
+ * missing or redundant indexes.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool that captures and compares query plans for the menu
+ * operations of {@link Hotel}.
+ *
+ * <pre>
+ * java QueryPlanAdvisor &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;record|check|advise&gt; [scale]
+ * </pre>
+ *
+ * {@code record} stores a baseline for the given scale, {@code check} compares
+ * the current plans against it and exits with status 1 when a hot template got
+ * more expensive, and {@code advise} only prints the index suggestions.
+ */
+public class QueryPlanAdvisor {
+
+    // relative cost/buffer growth tolerated before a template counts as regressed
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("advisor.tolerance", "0.25"));
+
+    // sequential scans that throw away fewer rows than this are not worth an index
+    private static final long SEQ_SCAN_MIN_ROWS = Long.parseLong(System.getProperty("advisor.seqscan.minRows", "1000"));
+
+    // where baselines are written, one file per data scale
+    private static final String BASELINE_DIR = System.getProperty("advisor.baselineDir", "sql/plans");
+
+    private static final Pattern EQUALITY = Pattern.compile("\\(?(\\w+) = ");
+    private static final Pattern RANGE = Pattern.compile("\\(?(\\w+) (?:>=|<=|>|<) ");
+
+    private final Hotel esql;
+    private final Map<String, Template> templates = new LinkedHashMap<String, Template>();
+
+    /**
+     * A menu query with the sample parameters already filled in.
+     */
+    static class Template {
+        final String name;
+        final String sql;
+        // hot templates sit on the booking/availability path and fail the check when they regress
+        final boolean hot;
+        final boolean write;
+
+        Template(String name, String sql, boolean hot, boolean write) {
+            this.name = name;
+            this.sql = sql;
+            this.hot = hot;
+            this.write = write;
+        }
+    }
+
+    /**
+     * Summary of one EXPLAIN run that is small enough to keep in a baseline file.
+     */
+    static class PlanSummary {
+        String shape;
+        double totalCost;
+        double executionTime;
+        long buffers;
+        // relation -> rows removed by the filter of its sequential scan
+        Map<String, Long> seqScans = new LinkedHashMap<String, Long>();
+        // relation -> filter expression of its sequential scan
+        Map<String, String> seqScanFilters = new LinkedHashMap<String, String>();
+        Set<String> indexesUsed = new LinkedHashSet<String>();
+    }
+
+    public QueryPlanAdvisor(Hotel esql) {
+        this.esql = esql;
+    }
+
+    /**
+     * Picks sample parameters from the busiest hotel so that the templates are
+     * explained against realistic rather than empty selections.
+     *
+     * @throws java.sql.SQLException when the sample cannot be read
+     */
+    public void loadTemplates() throws SQLException {
+        List<List<String>> sample = esql.executeQueryAndReturnResult(
+                "SELECT RB.hotelID, RB.roomNumber, RB.customerID, " +
+                        "to_char(RB.bookingDate, 'MM-DD-YYYY'), to_char(RB.bookingDate - 30, 'MM-DD-YYYY'), " +
+                        "H.managerUserID, H.latitude, H.longitude, " +
+                        // a date the room is still free on, so that the booking inserts run into no unique violation
+                        "(SELECT to_char(MAX(F.bookingDate) + 1, 'MM-DD-YYYY') FROM RoomBookings F " +
+                        "WHERE F.hotelID = RB.hotelID AND F.roomNumber = RB.roomNumber) " +
+                        "FROM RoomBookings RB JOIN Hotel H ON RB.hotelID = H.hotelID " +
+                        "WHERE RB.hotelID = (SELECT hotelID FROM RoomBookings GROUP BY hotelID ORDER BY COUNT(*) DESC LIMIT 1) " +
+                        "ORDER BY RB.bookingID LIMIT 1");
+        if (sample.isEmpty())
+            throw new SQLException("RoomBookings is empty, load some data before explaining the menu queries");
+        List<String> row = sample.get(0);
+        int hotelID = Integer.parseInt(row.get(0));
+        int roomNumber = Integer.parseInt(row.get(1));
+        int customerID = Integer.parseInt(row.get(2));
+        String date = row.get(3);
+        String monthBefore = row.get(4);
+        int managerID = Integer.parseInt(row.get(5));
+        double latitude = Double.parseDouble(row.get(6));
+        double longitude = Double.parseDouble(row.get(7));
+        String freeDate = row.get(8);
+        List<List<String>> company = esql.executeQueryAndReturnResult(
+                "SELECT companyID FROM MaintenanceCompany ORDER BY companyID LIMIT 1");
+        int companyID = company.isEmpty() ? 1 : Integer.parseInt(company.get(0).get(0));
+
+        add("login", bind(Hotel.LOGIN_QUERY, customerID, "xyz"), true, false);
+        add("userType", bind(Hotel.USER_TYPE_QUERY, customerID), true, false);
+        add("createUser", bind(Hotel.CREATE_USER_QUERY, "advisor", "xyz", "Customer"), false, true);
+        add("viewHotels", String.format(Locale.US, Hotel.VIEW_HOTELS_QUERY, latitude, longitude), true, false);
+        add("viewRooms", String.format(Hotel.VIEW_ROOMS_QUERY, date, hotelID), true, false);
+        add("roomUnavailable", String.format(Hotel.ROOM_UNAVAILABLE_QUERY, hotelID, roomNumber, date), true, false);
+        add("roomPrice", String.format(Hotel.ROOM_PRICE_QUERY, hotelID, roomNumber), true, false);
+        add("roomPriceHistory", String.format(PriceHistory.ROOM_HISTORY_QUERY, hotelID, roomNumber), false, false);
+        add("insertBooking", String.format(Hotel.INSERT_BOOKING_QUERY, customerID, hotelID, roomNumber, freeDate), true, true);
+        add("groupBooking", String.format(Hotel.GROUP_BOOKING_QUERY,
+                "{" + hotelID + "}", "{" + roomNumber + "}", "{" + freeDate + "}", customerID), true, true);
+        add("hotelManager", String.format(Hotel.HOTEL_MANAGER_QUERY, hotelID), true, false);
+        add("roomInfo", String.format(Hotel.ROOM_INFO_QUERY, hotelID, roomNumber), false, false);
+        add("updateRoom", bind(Hotel.UPDATE_ROOM_QUERY, 100, "advisor", hotelID, roomNumber), false, true);
+        add("insertRoomUpdateLog", String.format(Hotel.INSERT_ROOM_UPDATE_LOG_QUERY, managerID, hotelID, roomNumber), false, true);
+        add("recentUpdates", String.format(Hotel.RECENT_UPDATES_QUERY, managerID), false, false);
+        add("customerBookings", String.format(Hotel.CUSTOMER_BOOKINGS_QUERY, customerID), true, false);
+        add("hotelBookings", String.format(Hotel.HOTEL_BOOKINGS_QUERY, monthBefore, date), false, false);
+        add("regularCustomers", String.format(Hotel.REGULAR_CUSTOMERS_QUERY, hotelID), false, false);
+        add("insertRepair", String.format(Hotel.INSERT_REPAIR_QUERY, companyID, hotelID, roomNumber, date), false, true);
+        add("lastRepairID", String.format(Hotel.LAST_REPAIR_ID_QUERY, companyID, hotelID, roomNumber), false, false);
+        add("managedHotels", String.format(Hotel.MANAGED_HOTELS_QUERY, managerID), false, false);
+        add("repairHistory", String.format(Hotel.REPAIR_HISTORY_QUERY, managerID), false, false);
+    }
+
+    private void add(String name, String sql, boolean hot, boolean write) {
+        templates.put(name, new Template(name, sql, hot, write));
+    }
+
+    /*
+     * Puts sample values in place of the parameters of a prepared template, so
+     * that it can be explained as text. The values are our own, not user input.
+     */
+    static String bind(String template, Object... values) {
+        StringBuilder sql = new StringBuilder();
+        int value = 0;
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c != '?')
+                sql.append(c);
+            else if (values[value] instanceof String)
+                sql.append('\'').append(((String) values[value++]).replace("'", "''")).append('\'');
+            else
+                sql.append(values[value++]);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Explains every template. Writes are explained inside a transaction that is
+     * rolled back, so the database is left untouched.
+     *
+     * @return the plan summary of every template, by template name
+     * @throws java.sql.SQLException when a template cannot be explained
+     */
+    public Map<String, PlanSummary> explainAll() throws SQLException {
+        Map<String, PlanSummary> plans = new LinkedHashMap<String, PlanSummary>();
+        for (Template template : templates.values()) {
+            String explain = "EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) " + template.sql;
+            String json;
+            if (template.write) {
+                esql.executeUpdate("BEGIN");
+                try {
+                    json = esql.executeQueryAndReturnResult(explain).get(0).get(0);
+                } finally {
+                    esql.executeUpdate("ROLLBACK");
+                }
+            } else {
+                json = esql.executeQueryAndReturnResult(explain).get(0).get(0);
+            }
+            plans.put(template.name, summarize(json));
+        }
+        return plans;
+    }
+
+    @SuppressWarnings("unchecked")
+    static PlanSummary summarize(String json) {
+        List<Object> root = (List<Object>) new JsonReader(json).read();
+        Map<String, Object> top = (Map<String, Object>) root.get(0);
+        Map<String, Object> plan = (Map<String, Object>) top.get("Plan");
+
+        PlanSummary summary = new PlanSummary();
+        summary.totalCost = number(plan, "Total Cost");
+        summary.executionTime = number(top, "Execution Time");
+        StringBuilder shape = new StringBuilder();
+        walk(plan, summary, shape);
+        summary.shape = shape.toString();
+        return summary;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void walk(Map<String, Object> node, PlanSummary summary, StringBuilder shape) {
+        String type = (String) node.get("Node Type");
+        String relation = (String) node.get("Relation Name");
+        String index = (String) node.get("Index Name");
+        shape.append(type);
+        if (relation != null)
+            shape.append('[').append(relation).append(index != null ? "/" + index : "").append(']');
+        if (index != null)
+            summary.indexesUsed.add(index);
+        summary.buffers += (long) (number(node, "Shared Hit Blocks") + number(node, "Shared Read Blocks"));
+
+        if ("Seq Scan".equals(type) && relation != null) {
+            long removed = (long) (number(node, "Rows Removed by Filter") * Math.max(1, number(node, "Actual Loops")));
+            Long previous = summary.seqScans.get(relation);
+            summary.seqScans.put(relation, previous == null ? removed : previous + removed);
+            if (node.get("Filter") != null)
+                summary.seqScanFilters.put(relation, (String) node.get("Filter"));
+        }
+
+        List<Object> children = (List<Object>) node.get("Plans");
+        if (children != null) {
+            // buffer counts of a parent already include its children
+            long childBuffers = 0;
+            shape.append('(');
+            for (int i = 0; i < children.size(); i++) {
+                if (i > 0)
+                    shape.append(',');
+                Map<String, Object> child = (Map<String, Object>) children.get(i);
+                childBuffers += (long) (number(child, "Shared Hit Blocks") + number(child, "Shared Read Blocks"));
+                walk(child, summary, shape);
+            }
+            summary.buffers -= childBuffers;
+            shape.append(')');
+        }
+    }
+
+    private static double number(Map<String, Object> node, String key) {
+        Object value = node.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    /**
+     * Suggests an index for every sequential scan that discards many rows, built
+     * from the equality columns of its filter followed by one range column.
+     *
+     * @return CREATE INDEX statements, without duplicates
+     */
+    public Set<String> suggestMissingIndexes(Map<String, PlanSummary> plans) {
+        Set<String> suggestions = new LinkedHashSet<String>();
+        for (PlanSummary plan : plans.values()) {
+            for (Map.Entry<String, String> scan : plan.seqScanFilters.entrySet()) {
+                if (plan.seqScans.get(scan.getKey()) < SEQ_SCAN_MIN_ROWS)
+                    continue;
+                List<String> columns = new ArrayList<String>();
+                Matcher eq = EQUALITY.matcher(scan.getValue());
+                while (eq.find())
+                    if (!columns.contains(eq.group(1)))
+                        columns.add(eq.group(1));
+                Matcher range = RANGE.matcher(scan.getValue());
+                if (range.find() && !columns.contains(range.group(1)))
+                    columns.add(range.group(1));
+                if (columns.isEmpty())
+                    continue;
+                String name = "index_" + scan.getKey() + "_" + join(columns, "_");
+                suggestions.add(String.format("CREATE INDEX %s ON %s (%s);", name, scan.getKey(), join(columns, ", ")));
+            }
+        }
+        return suggestions;
+    }
+
+    /**
+     * Finds indexes whose leading columns are already covered by another index on
+     * the same table (for example a plain index that repeats the primary key), and
+     * indexes that none of the menu templates use.
+     *
+     * @return human readable findings
+     * @throws java.sql.SQLException when the catalog cannot be read
+     */
+    public List<String> findRedundantIndexes(Map<String, PlanSummary> plans) throws SQLException {
+        List<List<String>> indexes = esql.executeQueryAndReturnResult(
+                "SELECT c.relname, i.relname, ix.indisunique, ix.indisprimary, ix.indkey::text " +
+                        "FROM pg_index ix " +
+                        "JOIN pg_class i ON i.oid = ix.indexrelid " +
+                        "JOIN pg_class c ON c.oid = ix.indrelid " +
+                        "JOIN pg_namespace n ON n.oid = c.relnamespace " +
+                        "WHERE n.nspname = 'public' ORDER BY c.relname, i.relname");
+        Set<String> used = new LinkedHashSet<String>();
+        for (PlanSummary plan : plans.values())
+            used.addAll(plan.indexesUsed);
+
+        List<String> findings = new ArrayList<String>();
+        for (List<String> index : indexes) {
+            // primary keys and unique indexes enforce a constraint and are never redundant
+            boolean unique = index.get(2).startsWith("t") || index.get(3).startsWith("t");
+            String keys = index.get(4).trim();
+            for (List<String> other : indexes) {
+                if (unique || other == index || !other.get(0).equals(index.get(0)))
+                    continue;
+                String otherKeys = other.get(4).trim();
+                if (otherKeys.equals(keys) || otherKeys.startsWith(keys + " ")) {
+                    findings.add(String.format("DROP INDEX %s; -- columns covered by %s on %s",
+                            index.get(1), other.get(1), index.get(0)));
+                    break;
+                }
+            }
+            if (!unique && !used.contains(index.get(1)))
+                findings.add(String.format("-- %s on %s is not used by any menu query", index.get(1), index.get(0)));
+        }
+        return findings;
+    }
+
+    /**
+     * Compares the current plans with a baseline.
+     *
+     * @return the number of hot templates that regressed
+     */
+    public int compare(Map<String, PlanSummary> plans, Properties baseline) {
+        int failures = 0;
+        for (Map.Entry<String, PlanSummary> entry : plans.entrySet()) {
+            String name = entry.getKey();
+            PlanSummary now = entry.getValue();
+            Template template = templates.get(name);
+            String tag = template.hot ? "HOT " : "    ";
+            if (baseline.getProperty(name + ".shape") == null) {
+                System.out.println(tag + name + ": no baseline");
+                continue;
+            }
+            double cost = Double.parseDouble(baseline.getProperty(name + ".cost"));
+            long buffers = Long.parseLong(baseline.getProperty(name + ".buffers"));
+            double time = Double.parseDouble(baseline.getProperty(name + ".time"));
+
+            List<String> problems = new ArrayList<String>();
+            if (!baseline.getProperty(name + ".shape").equals(now.shape))
+                problems.add("plan shape changed: " + baseline.getProperty(name + ".shape") + " -> " + now.shape);
+            boolean regressed = false;
+            if (now.totalCost > cost * (1 + TOLERANCE)) {
+                problems.add(String.format(Locale.US, "cost %.2f -> %.2f", cost, now.totalCost));
+                regressed = true;
+            }
+            if (now.buffers > Math.max(buffers, 1) * (1 + TOLERANCE)) {
+                problems.add("buffers " + buffers + " -> " + now.buffers);
+                regressed = true;
+            }
+            if (regressed && template.hot)
+                failures++;
+
+            System.out.println(String.format(Locale.US, "%s%s: cost %.2f, %d buffers, %.3f ms (baseline %.3f ms)%s",
+                    tag, name, now.totalCost, now.buffers, now.executionTime, time,
+                    problems.isEmpty() ? "" : "\n\t" + join(problems, "\n\t")));
+        }
+        return failures;
+    }
+
+    static Properties toBaseline(Map<String, PlanSummary> plans) {
+        Properties baseline = new Properties();
+        for (Map.Entry<String, PlanSummary> entry : plans.entrySet()) {
+            PlanSummary plan = entry.getValue();
+            baseline.setProperty(entry.getKey() + ".shape", plan.shape);
+            baseline.setProperty(entry.getKey() + ".cost", String.valueOf(plan.totalCost));
+            baseline.setProperty(entry.getKey() + ".buffers", String.valueOf(plan.buffers));
+            baseline.setProperty(entry.getKey() + ".time", String.valueOf(plan.executionTime));
+        }
+        return baseline;
+    }
+
+    private void printSeqScans(Map<String, PlanSummary> plans) {
+        for (Map.Entry<String, PlanSummary> entry : plans.entrySet()) {
+            for (Map.Entry<String, Long> scan : entry.getValue().seqScans.entrySet()) {
+                if (scan.getValue() >= SEQ_SCAN_MIN_ROWS)
+                    System.out.println(String.format("Seq Scan on %s in %s discards %d rows",
+                            scan.getKey(), entry.getKey(), scan.getValue()));
+            }
+        }
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0)
+                sb.append(separator);
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The main execution method
+     *
+     * @param args the command line arguments <dbname> <port> <user> <record|check|advise> [scale]
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: " +
+                            "java [-classpath <classpath>] " +
+                            QueryPlanAdvisor.class.getName() +
+                            " <dbname> <port> <user> <record|check|advise> [scale]");
+            return;
+        }//end if
+
+        String mode = args[3];
+        String scale = args.length > 4 ? args[4] : "default";
+        File baselineFile = new File(BASELINE_DIR, scale + ".baseline");
+        Hotel esql = null;
+        int status = 0;
+        try {
+            Class.forName("org.postgresql.Driver");
+            esql = new Hotel(args[0], args[1], args[2], "");
+            QueryPlanAdvisor advisor = new QueryPlanAdvisor(esql);
+            advisor.loadTemplates();
+            Map<String, PlanSummary> plans = advisor.explainAll();
+
+            if (mode.equals("record")) {
+                baselineFile.getParentFile().mkdirs();
+                FileOutputStream out = new FileOutputStream(baselineFile);
+                try {
+                    toBaseline(plans).store(out, "EXPLAIN baseline for scale " + scale);
+                } finally {
+                    out.close();
+                }
+                System.out.println("Baseline written to " + baselineFile);
+            } else if (mode.equals("check")) {
+                Properties baseline = new Properties();
+                FileInputStream input = new FileInputStream(baselineFile);
+                try {
+                    baseline.load(input);
+                } finally {
+                    input.close();
+                }
+                int failures = advisor.compare(plans, baseline);
+                if (failures > 0) {
+                    System.out.println(failures + " hot query template(s) got slower than the baseline.");
+                    status = 1;
+                }
+            }
+
+            advisor.printSeqScans(plans);
+            for (String suggestion : advisor.suggestMissingIndexes(plans))
+                System.out.println(suggestion);
+            for (String finding : advisor.findRedundantIndexes(plans))
+                System.out.println(finding);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            status = 2;
+        } finally {
+            if (esql != null)
+                esql.cleanup();
+        }
+        System.exit(status);
+    }//end main
+
+    /**
+     * Just enough of a JSON reader for EXPLAIN output: objects become maps,
+     * arrays become lists and numbers become doubles.
+     */
+    static class JsonReader {
+        private final String text;
+        private int pos;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Object read() {
+            skipWhitespace();
+            char c = text.charAt(pos);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<String, Object>();
+                pos++;
+                skipWhitespace();
+                if (text.charAt(pos) == '}') {
+                    pos++;
+                    return object;
+                }
+                while (true) {
+                    skipWhitespace();
+                    String key = (String) read();
+                    skipWhitespace();
+                    expect(':');
+                    object.put(key, read());
+                    skipWhitespace();
+                    if (text.charAt(pos++) == '}')
+                        return object;
+                }
+            } else if (c == '[') {
+                List<Object> array = new ArrayList<Object>();
+                pos++;
+                skipWhitespace();
+                if (text.charAt(pos) == ']') {
+                    pos++;
+                    return array;
+                }
+                while (true) {
+                    array.add(read());
+                    skipWhitespace();
+                    if (text.charAt(pos++) == ']')
+                        return array;
+                }
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while ((c = text.charAt(pos++)) != '"') {
+                    if (c == '\\') {
+                        c = text.charAt(pos++);
+                        if (c == 'n')
+                            c = '\n';
+                        else if (c == 't')
+                            c = '\t';
+                        else if (c == 'u') {
+                            c = (char) Integer.parseInt(text.substring(pos, pos + 4), 16);
+                            pos += 4;
+                        }
+                    }
+                    sb.append(c);
+                }
+                return sb.toString();
+            } else if (text.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if (text.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            } else if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+                pos++;
+            return Double.valueOf(text.substring(start, pos));
+        }
+
+        private void expect(char c) {
+            if (text.charAt(pos++) != c)
+                throw new IllegalArgumentException("Expected '" + c + "' at " + (pos - 1));
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+    }
+}
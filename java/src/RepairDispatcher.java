@@ -0,0 +1,405 @@
+/*
+ * Repair Dispatcher
+ * =============================
+ *
+ * Treats RoomRepairRequests as a work queue: a pool of workers per
+ * MaintenanceCompany claims pending requests with FOR UPDATE SKIP LOCKED,
+ * carries them out and marks them completed.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests move from 'pending' to 'assigned' when a worker claims them and to
+ * 'completed' when the repair is done. A room with a request that is not
+ * completed is out of service (see Hotel.VIEW_ROOMS_QUERY). Requests of a
+ * worker that died stay 'assigned' until their lease runs out and are then
+ * handed out again.
+ * <p>
+ * A dispatcher works on a single database. Requests live on the shard of
+ * their hotel (see ShardRouter), so with shards one dispatcher has to run
+ * against every shard database.
+ */
+public class RepairDispatcher {
+
+    // claims up to %3$d pending requests of company %2$d for worker %1$s; rows locked by
+    // other workers are skipped instead of waited for
+    static final String CLAIM_QUERY =
+            "UPDATE RoomRepairRequests SET status = 'assigned', assignedTo = '%1$s', claimedOn = now() " +
+                    "WHERE requestNumber IN (" +
+                    "SELECT RRR.requestNumber FROM RoomRepairRequests RRR " +
+                    "JOIN RoomRepairs RR ON RR.repairID = RRR.repairID " +
+                    "WHERE RR.companyID = %2$d AND RRR.status = 'pending' " +
+                    "ORDER BY RRR.requestNumber LIMIT %3$d " +
+                    "FOR UPDATE OF RRR SKIP LOCKED) " +
+                    "RETURNING requestNumber";
+    static final String COMPLETE_QUERY =
+            "UPDATE RoomRepairRequests SET status = 'completed', completedOn = now() " +
+                    "WHERE requestNumber IN (%2$s) AND status = 'assigned' AND assignedTo = '%1$s'";
+    static final String RELEASE_EXPIRED_QUERY =
+            "UPDATE RoomRepairRequests SET status = 'pending', assignedTo = NULL, claimedOn = NULL " +
+                    "WHERE status = 'assigned' AND claimedOn < now() - interval '%d seconds'";
+    static final String COMPANIES_QUERY =
+            "SELECT companyID FROM MaintenanceCompany ORDER BY companyID";
+
+    // requests claimed per round trip
+    private static final int BATCH_SIZE = Integer.getInteger("dispatcher.batchSize", 10);
+
+    // how long a worker sleeps when its company has nothing pending
+    private static final long IDLE_MILLIS = Long.getLong("dispatcher.idleMillis", 500);
+
+    // how long an assigned request may stay unfinished before another worker takes it over
+    private static final int LEASE_SECONDS = Integer.getInteger("dispatcher.leaseSeconds", 600);
+
+    /**
+     * Carries out the repairs of a claimed batch, e.g. by handing them to the
+     * maintenance company's own system, with the connection of the worker that
+     * claimed them.
+     */
+    public interface RepairHandler {
+        void repair(Connection connection, int companyID, List<String> requestNumbers) throws Exception;
+    }
+
+    /**
+     * Counters shared by all workers of a dispatcher.
+     */
+    public static class Metrics {
+        final AtomicLong claimed = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong emptyPolls = new AtomicLong();
+        final long startedAt = System.nanoTime();
+
+        /**
+         * @return completed requests per second since the dispatcher started
+         */
+        public double throughput() {
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            return seconds == 0 ? 0 : completed.get() / seconds;
+        }
+
+        public String toString() {
+            return String.format("claimed %d, completed %d, failed %d, batches %d, empty polls %d, %.1f requests/s",
+                    claimed.get(), completed.get(), failed.get(), batches.get(), emptyPolls.get(), throughput());
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private final RepairHandler handler;
+    private final Metrics metrics = new Metrics();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean running = true;
+
+    public RepairDispatcher(String url, String user, String passwd, RepairHandler handler) {
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+        this.handler = handler;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts workersPerCompany workers for every maintenance company, each
+     * with its own connection.
+     *
+     * @throws java.sql.SQLException when the companies cannot be read
+     */
+    public void start(int workersPerCompany) throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, passwd);
+        try {
+            for (List<String> row : Hotel.executeQueryAndReturnResult(connection, COMPANIES_QUERY))
+                start(Integer.parseInt(row.get(0)), workersPerCompany);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Starts workers for one maintenance company.
+     */
+    public void start(int companyID, int workers) {
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Worker(companyID, "company" + companyID + "-worker" + i),
+                    "repair company " + companyID + " #" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops claiming new batches and waits for the batches in progress.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread thread : threads)
+            thread.join();
+        threads.clear();
+    }
+
+    /**
+     * Puts requests whose lease ran out back into the queue.
+     *
+     * @return the number of requests released
+     * @throws java.sql.SQLException when the update failed
+     */
+    public int releaseExpired() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, passwd);
+        try {
+            return Hotel.executeQueryAndReturnResult(connection,
+                    String.format(RELEASE_EXPIRED_QUERY, LEASE_SECONDS) + " RETURNING requestNumber").size();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int companyID;
+        private final String name;
+
+        Worker(int companyID, String name) {
+            this.companyID = companyID;
+            this.name = name;
+        }
+
+        public void run() {
+            Connection connection = null;
+            while (running) {
+                try {
+                    if (connection == null)
+                        connection = DriverManager.getConnection(url, user, passwd);
+                    List<List<String>> claimed = Hotel.executeQueryAndReturnResult(connection,
+                            String.format(CLAIM_QUERY, name, companyID, BATCH_SIZE));
+                    if (claimed.isEmpty()) {
+                        metrics.emptyPolls.incrementAndGet();
+                        Thread.sleep(IDLE_MILLIS);
+                        continue;
+                    }
+                    metrics.batches.incrementAndGet();
+                    metrics.claimed.addAndGet(claimed.size());
+
+                    List<String> requests = new ArrayList<String>();
+                    for (List<String> row : claimed)
+                        requests.add(row.get(0));
+                    try {
+                        handler.repair(connection, companyID, requests);
+                    } catch (Exception e) {
+                        // left 'assigned', the lease hands them out again later
+                        metrics.failed.addAndGet(requests.size());
+                        System.err.println(name + ": repair failed: " + e.getMessage());
+                        continue;
+                    }
+                    Hotel.executeUpdate(connection, String.format(COMPLETE_QUERY, name, join(requests)));
+                    metrics.completed.addAndGet(requests.size());
+                } catch (SQLException e) {
+                    System.err.println(name + ": " + e.getMessage());
+                    close(connection);
+                    connection = null;
+                    sleep(IDLE_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            close(connection);
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static void close(Connection connection) {
+        try {
+            if (connection != null)
+                connection.close();
+        } catch (SQLException e) {
+            // ignored.
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the benchmark's repairs, spread over all rooms; dated 9999-12-31 so the rooms stay in service
+    static final String BENCHMARK_REPAIRS_QUERY =
+            "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) " +
+                    "SELECT %d, R.hotelID, R.roomNumber, DATE '9999-12-31' FROM generate_series(0, %d - 1) i " +
+                    "JOIN (SELECT hotelID, roomNumber, row_number() OVER (ORDER BY hotelID, roomNumber) - 1 AS n, " +
+                    "COUNT(*) OVER () AS rooms FROM Rooms) R ON R.n = i %% R.rooms " +
+                    "RETURNING repairID";
+    static final String BENCHMARK_REQUESTS_QUERY =
+            "INSERT INTO RoomRepairRequests (managerID, repairID) " +
+                    "SELECT H.managerUserID, RR.repairID FROM RoomRepairs RR JOIN Hotel H ON H.hotelID = RR.hotelID " +
+                    "WHERE RR.%s";
+    // the benchmark's repair work: the manager of the room logs an update of it
+    static final String BENCHMARK_REPAIR_QUERY =
+            "INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) " +
+                    "SELECT RRR.managerID, RR.hotelID, RR.roomNumber, now() " +
+                    "FROM RoomRepairRequests RRR JOIN RoomRepairs RR ON RR.repairID = RRR.repairID " +
+                    "WHERE RRR.requestNumber IN (%s) RETURNING updateNumber";
+
+    /**
+     * Measures how throughput grows with the number of workers: for 1, 2, 4 and
+     * 8 workers it queues the same number of requests, lets the workers drain
+     * the queue and prints requests per second and the speedup over a single
+     * worker. Every repair is carried out against the database: the worker logs
+     * an update of the repaired room in RoomUpdatesLog before it completes the
+     * request, so the figures are those of the claim, the repair and the
+     * completion round trips and the locks they take.
+     * <p>
+     * The requests belong to a maintenance company created for the benchmark,
+     * so the workers claim nothing else, and their repairs are dated
+     * 9999-12-31, so the rooms stay in service. After every run the benchmark
+     * checks that each of its requests was handed out once, logged once and
+     * completed. The company, repairs, requests and room updates are deleted
+     * again afterwards.
+     */
+    static void benchmark(String url, String user, String passwd, int requests) throws Exception {
+        Connection connection = DriverManager.getConnection(url, user, passwd);
+        int companyID = -1;
+        String range = null;
+        String updates = null;
+        try {
+            updates = "updateNumber > " + Hotel.executeQueryAndReturnResult(connection,
+                    "SELECT COALESCE(MAX(updateNumber), 0) FROM RoomUpdatesLog").get(0).get(0);
+            companyID = Integer.parseInt(Hotel.executeQueryAndReturnResult(connection,
+                    "INSERT INTO MaintenanceCompany (companyID, name) " +
+                            "SELECT COALESCE(MAX(companyID), 0) + 1, 'dispatcher benchmark' FROM MaintenanceCompany " +
+                            "RETURNING companyID").get(0).get(0));
+            double single = 0;
+            System.out.println("Workers | Requests/s | Speedup | Efficiency");
+            for (int workers = 1; workers <= 8; workers *= 2) {
+                List<List<String>> repairs = Hotel.executeQueryAndReturnResult(connection,
+                        String.format(BENCHMARK_REPAIRS_QUERY, companyID, requests));
+                List<String> repairIDs = new ArrayList<String>();
+                for (List<String> row : repairs)
+                    repairIDs.add(row.get(0));
+                range = "repairID IN (" + join(repairIDs) + ")";
+                Hotel.executeUpdate(connection, String.format(BENCHMARK_REQUESTS_QUERY, range));
+
+                final Set<String> handled = Collections.synchronizedSet(new HashSet<String>());
+                final AtomicLong duplicates = new AtomicLong();
+                RepairDispatcher dispatcher = new RepairDispatcher(url, user, passwd, new RepairHandler() {
+                    public void repair(Connection connection, int companyID, List<String> requestNumbers)
+                            throws Exception {
+                        for (String request : requestNumbers)
+                            if (!handled.add(request))
+                                duplicates.incrementAndGet();
+                        int logged = Hotel.executeQueryAndReturnResult(connection,
+                                String.format(BENCHMARK_REPAIR_QUERY, join(requestNumbers))).size();
+                        if (logged != requestNumbers.size())
+                            throw new IllegalStateException(logged + " of " + requestNumbers.size() + " repairs logged");
+                    }
+                });
+                dispatcher.start(companyID, workers);
+                while (dispatcher.metrics().completed.get() < requests && dispatcher.metrics().failed.get() == 0)
+                    Thread.sleep(50);
+                double throughput = dispatcher.metrics().throughput();
+                dispatcher.stop();
+
+                int completed = Hotel.executeQuery(connection,
+                        "SELECT 1 FROM RoomRepairRequests WHERE status = 'completed' AND " + range);
+                int logged = Hotel.executeQuery(connection, "SELECT 1 FROM RoomUpdatesLog WHERE " + updates);
+                if (completed != requests || logged != requests || handled.size() != requests
+                        || duplicates.get() > 0 || dispatcher.metrics().failed.get() > 0)
+                    throw new IllegalStateException(String.format(
+                            "%d workers: %d of %d requests completed, %d logged, %d handled, %d handed out twice, %d failed",
+                            workers, completed, requests, logged, handled.size(), duplicates.get(),
+                            dispatcher.metrics().failed.get()));
+                if (workers == 1)
+                    single = throughput;
+                System.out.println(String.format("%7d | %10.1f | %7.2f | %9.0f%%",
+                        workers, throughput, throughput / single, throughput / single / workers * 100));
+
+                Hotel.executeUpdate(connection, "DELETE FROM RoomUpdatesLog WHERE " + updates);
+                Hotel.executeUpdate(connection, "DELETE FROM RoomRepairRequests WHERE " + range);
+                Hotel.executeUpdate(connection, "DELETE FROM RoomRepairs WHERE " + range);
+                range = null;
+            }
+        } finally {
+            try {
+                if (updates != null)
+                    Hotel.executeUpdate(connection, "DELETE FROM RoomUpdatesLog WHERE " + updates);
+                if (range != null) {
+                    Hotel.executeUpdate(connection, "DELETE FROM RoomRepairRequests WHERE " + range);
+                    Hotel.executeUpdate(connection, "DELETE FROM RoomRepairs WHERE " + range);
+                }
+                if (companyID >= 0)
+                    Hotel.executeUpdate(connection, "DELETE FROM MaintenanceCompany WHERE companyID = " + companyID);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the dispatcher until the process is stopped, printing metrics every
+     * ten seconds, or runs the scaling benchmark.
+     *
+     * @param args the command line arguments <dbname> <port> <user> [workersPerCompany | bench [requests]]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: " +
+                            "java [-classpath <classpath>] " +
+                            RepairDispatcher.class.getName() +
+                            " <dbname> <port> <user> [workersPerCompany | bench [requests]]");
+            return;
+        }//end if
+
+        String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+        try {
+            Class.forName("org.postgresql.Driver");
+            if (args.length > 3 && args[3].equals("bench")) {
+                int requests = args.length > 4 ? Integer.parseInt(args[4]) : 400;
+                benchmark(url, args[2], "", requests);
+                return;
+            }
+
+            int workers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+            RepairDispatcher dispatcher = new RepairDispatcher(url, args[2], "", new RepairHandler() {
+                public void repair(Connection connection, int companyID, List<String> requestNumbers) {
+                    System.out.println("Company " + companyID + " repairs requests " + requestNumbers);
+                }
+            });
+            dispatcher.start(workers);
+            while (true) {
+                Thread.sleep(10000);
+                int released = dispatcher.releaseExpired();
+                System.out.println(dispatcher.metrics() + (released > 0 ? ", " + released + " expired requests released" : ""));
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end main
+}
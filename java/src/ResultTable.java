@@ -0,0 +1,397 @@
+/*
+ * Result Table
+ * =============================
+ *
+ * Query result stored column by column in primitive arrays instead of one
+ * String per cell.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the metadata of a result set once and keeps every column in an array
+ * of its type: integers in int[], bigints in long[], decimals in double[],
+ * dates as epoch days and timestamps as epoch microseconds in long[]. Text is
+ * kept as trimmed strings, with repeated values sharing one instance.
+ * <p>
+ * The pg73 driver holds a whole result set in memory before the first row is
+ * read, so a table only saves memory over the string rows when the result is
+ * read from a cursor in chunks, see Hotel.executeQueryAndReturnTableInChunks.
+ */
+public class ResultTable {
+
+    static final int TEXT = 0;
+    static final int INT = 1;
+    static final int LONG = 2;
+    static final int DOUBLE = 3;
+    static final int DATE = 4;
+    static final int TIMESTAMP = 5;
+
+    private final String[] names;
+    private final int[] types;
+    private final Object[] columns;
+    private final BitSet[] nulls;
+    private int size;
+
+    private ResultTable(String[] names, int[] types, int capacity) {
+        this.names = names;
+        this.types = types;
+        this.columns = new Object[types.length];
+        this.nulls = new BitSet[types.length];
+        for (int c = 0; c < types.length; c++) {
+            columns[c] = newColumn(types[c], capacity);
+            nulls[c] = new BitSet();
+        }
+    }
+
+    private static Object newColumn(int type, int capacity) {
+        switch (type) {
+            case INT:
+                return new int[capacity];
+            case LONG:
+            case DATE:
+            case TIMESTAMP:
+                return new long[capacity];
+            case DOUBLE:
+                return new double[capacity];
+            default:
+                return new String[capacity];
+        }
+    }
+
+    private static int typeOf(int sqlType) {
+        switch (sqlType) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return DOUBLE;
+            case Types.DATE:
+                return DATE;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            default:
+                return TEXT;
+        }
+    }
+
+    /**
+     * Reads every row of a result set.
+     *
+     * @param rs the result set, positioned before the first row
+     * @return the rows of the result set
+     * @throws java.sql.SQLException when the result set cannot be read
+     */
+    public static ResultTable read(ResultSet rs) throws SQLException {
+        return read(rs, null, new HashMap<String, String>());
+    }
+
+    /**
+     * Reads every row of a result set after the rows already in a table, such
+     * as the next FETCH from the cursor of the same query.
+     *
+     * @param rs the result set, positioned before the first row
+     * @param table the table to append to, null for a new one
+     * @param strings the text values of the table, so that repeated values
+     * keep sharing one instance across reads
+     * @return the table with the rows of the result set appended
+     * @throws java.sql.SQLException when the result set cannot be read
+     */
+    static ResultTable read(ResultSet rs, ResultTable table, Map<String, String> strings) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        int numCol = rsmd.getColumnCount();
+        String[] names = new String[numCol];
+        int[] types = new int[numCol];
+        boolean[] padded = new boolean[numCol];
+        for (int i = 1; i <= numCol; i++) {
+            names[i - 1] = rsmd.getColumnName(i);
+            types[i - 1] = typeOf(rsmd.getColumnType(i));
+            padded[i - 1] = rsmd.getColumnType(i) == Types.CHAR;
+        }
+
+        if (table == null)
+            table = new ResultTable(names, types, 16);
+        // one instance per distinct text value of the result
+        while (rs.next()) {
+            int row = table.size;
+            if (row == table.capacity())
+                table.grow();
+            for (int c = 0; c < numCol; c++) {
+                int i = c + 1;
+                switch (types[c]) {
+                    case INT:
+                        ((int[]) table.columns[c])[row] = rs.getInt(i);
+                        break;
+                    case LONG:
+                        ((long[]) table.columns[c])[row] = rs.getLong(i);
+                        break;
+                    case DOUBLE:
+                        ((double[]) table.columns[c])[row] = rs.getDouble(i);
+                        break;
+                    case DATE: {
+                        String value = rs.getString(i);
+                        if (value != null)
+                            ((long[]) table.columns[c])[row] = parseDate(value);
+                        break;
+                    }
+                    case TIMESTAMP: {
+                        String value = rs.getString(i);
+                        if (value != null)
+                            ((long[]) table.columns[c])[row] = parseTimestamp(value);
+                        break;
+                    }
+                    default: {
+                        String value = rs.getString(i);
+                        if (value != null) {
+                            if (padded[c])
+                                value = trimTrailing(value);
+                            String shared = strings.get(value);
+                            if (shared == null)
+                                strings.put(value, shared = value);
+                            ((String[]) table.columns[c])[row] = shared;
+                        }
+                    }
+                }
+                if (rs.wasNull())
+                    table.nulls[c].set(row);
+            }
+            table.size++;
+        }
+        return table;
+    }
+
+    private int capacity() {
+        return java.lang.reflect.Array.getLength(columns[0]);
+    }
+
+    private void grow() {
+        int capacity = capacity() * 2;
+        for (int c = 0; c < columns.length; c++) {
+            Object column = columns[c];
+            if (column instanceof int[])
+                columns[c] = Arrays.copyOf((int[]) column, capacity);
+            else if (column instanceof long[])
+                columns[c] = Arrays.copyOf((long[]) column, capacity);
+            else if (column instanceof double[])
+                columns[c] = Arrays.copyOf((double[]) column, capacity);
+            else
+                columns[c] = Arrays.copyOf((String[]) column, capacity);
+        }
+    }
+
+    private static String trimTrailing(String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ')
+            end--;
+        return end == value.length() ? value : value.substring(0, end);
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int columnCount() {
+        return names.length;
+    }
+
+    public String columnName(int column) {
+        return names[column];
+    }
+
+    public boolean isNull(int row, int column) {
+        return nulls[column].get(row);
+    }
+
+    public int getInt(int row, int column) {
+        Object values = columns[column];
+        if (values instanceof int[])
+            return ((int[]) values)[row];
+        if (values instanceof long[])
+            return (int) ((long[]) values)[row];
+        if (values instanceof double[])
+            return (int) ((double[]) values)[row];
+        return Integer.parseInt(((String[]) values)[row]);
+    }
+
+    public long getLong(int row, int column) {
+        Object values = columns[column];
+        if (values instanceof int[])
+            return ((int[]) values)[row];
+        if (values instanceof long[])
+            return ((long[]) values)[row];
+        if (values instanceof double[])
+            return (long) ((double[]) values)[row];
+        return Long.parseLong(((String[]) values)[row]);
+    }
+
+    public double getDouble(int row, int column) {
+        Object values = columns[column];
+        if (values instanceof double[])
+            return ((double[]) values)[row];
+        if (values instanceof String[])
+            return Double.parseDouble(((String[]) values)[row]);
+        return getLong(row, column);
+    }
+
+    /**
+     * @return days since 1970-01-01 of a DATE column
+     */
+    public long getEpochDay(int row, int column) {
+        return ((long[]) columns[column])[row];
+    }
+
+    /**
+     * @return the value as text: trimmed for text columns, yyyy-mm-dd for
+     * dates and yyyy-mm-dd hh:mm:ss for timestamps, null for NULL
+     */
+    public String getString(int row, int column) {
+        if (isNull(row, column))
+            return null;
+        switch (types[column]) {
+            case INT:
+                return String.valueOf(((int[]) columns[column])[row]);
+            case LONG:
+                return String.valueOf(((long[]) columns[column])[row]);
+            case DOUBLE: {
+                double value = ((double[]) columns[column])[row];
+                return value == Math.rint(value) && Math.abs(value) < 1e15
+                        ? String.valueOf((long) value) : String.valueOf(value);
+            }
+            case DATE:
+                return formatDate(((long[]) columns[column])[row]);
+            case TIMESTAMP:
+                return formatTimestamp(((long[]) columns[column])[row]);
+            default:
+                return ((String[]) columns[column])[row];
+        }
+    }
+
+    private int compare(int row, ResultTable other, int otherRow, int column) {
+        switch (types[column]) {
+            case TEXT:
+                return getString(row, column).compareTo(other.getString(otherRow, column));
+            case DOUBLE:
+                return Double.compare(getDouble(row, column), other.getDouble(otherRow, column));
+            default:
+                long a = getLong(row, column);
+                long b = other.getLong(otherRow, column);
+                return a < b ? -1 : a == b ? 0 : 1;
+        }
+    }
+
+    /**
+     * Merges tables that are each sorted on the same column, e.g. the results
+     * of one query on every shard.
+     *
+     * @param parts the sorted tables
+     * @param column the column they are sorted on
+     * @param descending whether they are sorted in descending order
+     * @param limit maximum number of rows, 0 for all
+     * @return for each merged row, (index of the table &lt;&lt; 32) | row
+     */
+    public static long[] merge(List<ResultTable> parts, int column, boolean descending, int limit) {
+        int total = 0;
+        for (ResultTable part : parts)
+            total += part.size;
+        if (limit > 0)
+            total = Math.min(total, limit);
+        int[] next = new int[parts.size()];
+        long[] order = new long[total];
+        for (int k = 0; k < total; k++) {
+            int best = -1;
+            for (int p = 0; p < parts.size(); p++) {
+                if (next[p] == parts.get(p).size)
+                    continue;
+                if (best < 0) {
+                    best = p;
+                    continue;
+                }
+                int c = parts.get(p).compare(next[p], parts.get(best), next[best], column);
+                if (descending ? c > 0 : c < 0)
+                    best = p;
+            }
+            order[k] = ((long) best << 32) | next[best]++;
+        }
+        return order;
+    }
+
+    // days from civil, see http://howardhinnant.github.io/date_algorithms.html
+    static long epochDay(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yoe = year - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    // parses the ISO output of Postgres, yyyy-mm-dd
+    static long parseDate(String value) {
+        return epochDay(Integer.parseInt(value.substring(0, 4)),
+                Integer.parseInt(value.substring(5, 7)), Integer.parseInt(value.substring(8, 10)));
+    }
+
+    // parses yyyy-mm-dd hh:mm:ss[.ffffff] into microseconds since 1970-01-01 00:00:00
+    static long parseTimestamp(String value) {
+        long micros = parseDate(value) * 86400000000L;
+        if (value.length() >= 19) {
+            micros += (Integer.parseInt(value.substring(11, 13)) * 3600L
+                    + Integer.parseInt(value.substring(14, 16)) * 60L
+                    + Integer.parseInt(value.substring(17, 19))) * 1000000L;
+            if (value.length() > 20 && value.charAt(19) == '.') {
+                String fraction = (value.substring(20) + "000000").substring(0, 6);
+                micros += Integer.parseInt(fraction);
+            }
+        }
+        return micros;
+    }
+
+    static String formatDate(long epochDay) {
+        long z = epochDay + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return String.format("%04d-%02d-%02d", year, month, day);
+    }
+
+    static String formatTimestamp(long micros) {
+        long day = Math.floorDiv(micros, 86400000000L);
+        long time = micros - day * 86400000000L;
+        long seconds = time / 1000000;
+        String text = String.format("%s %02d:%02d:%02d", formatDate(day), seconds / 3600, seconds / 60 % 60, seconds % 60);
+        if (time % 1000000 != 0)
+            text += String.format(".%06d", time % 1000000).replaceAll("0+$", "");
+        return text;
+    }
+}
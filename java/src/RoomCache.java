@@ -0,0 +1,95 @@
+/*
+ * Room Cache
+ * =============================
+ *
+ * Process-local cache of hotel managers and room prices, kept coherent with
+ * the database by the change feed.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the values the menu looks up on every booking and manager action.
+ * Entries are dropped when the change feed reports a change of their hotel or
+ * room, and everything is dropped when the feed had to reconnect. While any
+ * feed is disconnected the cache is bypassed.
+ */
+public class RoomCache implements ChangeFeed.Listener {
+
+    private final ConcurrentHashMap<Integer, Integer> managers = new ConcurrentHashMap<Integer, Integer>();
+    private final ConcurrentHashMap<Long, Integer> prices = new ConcurrentHashMap<Long, Integer>();
+    private final List<ChangeFeed> feeds = new CopyOnWriteArrayList<ChangeFeed>();
+
+    // bumped by every change of a hotel or room, so a value read before the change is not cached after it
+    private final AtomicLong generation = new AtomicLong();
+
+    public void attach(ChangeFeed feed) {
+        feeds.add(feed);
+        feed.addListener(this);
+    }
+
+    private boolean usable() {
+        for (ChangeFeed feed : feeds)
+            if (!feed.isListening())
+                return false;
+        return !feeds.isEmpty();
+    }
+
+    private static long roomKey(int hotelID, int roomNumber) {
+        return ((long) hotelID << 32) | (roomNumber & 0xffffffffL);
+    }
+
+    /**
+     * @return a token to pass to the put methods after reading from the database
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return the manager of the hotel, or null when it is not cached
+     */
+    public Integer managerOf(int hotelID) {
+        return usable() ? managers.get(hotelID) : null;
+    }
+
+    public void putManager(int hotelID, int managerID, long readAt) {
+        if (usable() && generation.get() == readAt)
+            managers.put(hotelID, managerID);
+    }
+
+    /**
+     * @return the price of the room, or null when it is not cached
+     */
+    public Integer priceOf(int hotelID, int roomNumber) {
+        return usable() ? prices.get(roomKey(hotelID, roomNumber)) : null;
+    }
+
+    public void putPrice(int hotelID, int roomNumber, int price, long readAt) {
+        if (usable() && generation.get() == readAt)
+            prices.put(roomKey(hotelID, roomNumber), price);
+    }
+
+    public void onChange(String table, char operation, int hotelID, int roomNumber) {
+        if (table.equals("hotel")) {
+            generation.incrementAndGet();
+            managers.remove(hotelID);
+        } else if (table.equals("rooms")) {
+            generation.incrementAndGet();
+            prices.remove(roomKey(hotelID, roomNumber));
+        }
+    }
+
+    public void onResync() {
+        generation.incrementAndGet();
+        managers.clear();
+        prices.clear();
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Shard Router
+ * =============================
+ *
+ * Maps hotelIDs onto a set of Postgres instances with a consistent-hash ring.
+ * Users and MaintenanceCompany are global tables: they are written on the
+ * first shard and replicated to every other shard. The ShardRing table of the
+ * first shard holds the epoch of the ring, which goes up whenever a router
+ * adds or removes a shard.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Routes hotel-keyed statements to the shard that owns the hotel and runs
+ * cross-shard reads on every shard in parallel. A router checks the epoch of
+ * the ring at most every shards.ringCheckMillis; once another router changed
+ * the ring, it refuses to route, as it would send the statements of moved
+ * hotels to their old shard. It has to be restarted with the new shards.
+ */
+public class ShardRouter {
+
+    // points per shard on the ring; more points give a more even spread of hotels
+    private static final int VIRTUAL_NODES = 128;
+
+    // how often a router checks that the ring did not change under it
+    private static final long RING_CHECK_MILLIS = Long.getLong("shards.ringCheckMillis", 1000);
+
+    // tables replicated to every shard, with the key used to find missing rows
+    private static final String[][] GLOBAL_TABLES = {
+            {"Users", "userID"},
+            {"MaintenanceCompany", "companyID"}
+    };
+
+    // per-shard id columns that must not collide when a hotel moves between shards:
+    // table, column, serial sequence, sequence used by triggers.sql
+    private static final String[][] SHARD_SEQUENCES = {
+            {"RoomBookings", "bookingID", "roombookings_bookingid_seq", "bookingid_seq"},
+            {"RoomRepairs", "repairID", "roomrepairs_repairid_seq", "repairid_seq"},
+            {"RoomRepairRequests", "requestNumber", "roomrepairrequests_requestnumber_seq", "requestnumber_seq"},
+            {"RoomUpdatesLog", "updateNumber", "roomupdateslog_updatenumber_seq", "updatenumber_seq"},
+            {"RoomPriceHistory", "changeID", "roompricehistory_changeid_seq"}
+    };
+
+    /**
+     * One Postgres instance and its connection.
+     */
+    static class Shard {
+        final String url;
+        final Connection connection;
+
+        Shard(String url, Connection connection) {
+            this.url = url;
+            this.connection = connection;
+        }
+    }
+
+    private final String user;
+    private final String passwd;
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+    private ExecutorService pool;
+    private long epoch;
+    private long ringCheckedAt;
+
+    /**
+     * Connects to every shard. The first URL is the shard that takes the writes
+     * of the global tables.
+     *
+     * @param urls JDBC URLs of the shards
+     * @throws java.sql.SQLException when a shard cannot be reached
+     */
+    public ShardRouter(List<String> urls, String user, String passwd) throws SQLException {
+        this.user = user;
+        this.passwd = passwd;
+        for (String url : urls)
+            addToRing(new Shard(url, DriverManager.getConnection(url, user, passwd)));
+        this.pool = newPool(shards.size());
+        Hotel.executeUpdate(globalConnection(), "CREATE TABLE IF NOT EXISTS ShardRing (epoch bigint NOT NULL)");
+        Hotel.executeUpdate(globalConnection(),
+                "INSERT INTO ShardRing SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM ShardRing)");
+        this.epoch = readEpoch();
+        this.ringCheckedAt = System.currentTimeMillis();
+    }
+
+    private long readEpoch() throws SQLException {
+        return Hotel.executeQueryAndReturnTable(globalConnection(), "SELECT epoch FROM ShardRing").getLong(0, 0);
+    }
+
+    /*
+     * Tells the other routers that the ring changed, before any hotel moves.
+     */
+    private void publishRing() throws SQLException {
+        epoch = Hotel.executeQueryAndReturnTable(globalConnection(),
+                "UPDATE ShardRing SET epoch = epoch + 1 RETURNING epoch").getLong(0, 0);
+        ringCheckedAt = System.currentTimeMillis();
+    }
+
+    private synchronized void checkRing() throws SQLException {
+        if (System.currentTimeMillis() - ringCheckedAt < RING_CHECK_MILLIS)
+            return;
+        long current = readEpoch();
+        if (current != epoch)
+            throw new SQLException("The shards were changed by another router (ring epoch " + current
+                    + ", this router has " + epoch + "); restart with the current shards");
+        ringCheckedAt = System.currentTimeMillis();
+    }
+
+    private static ExecutorService newPool(int size) {
+        return Executors.newFixedThreadPool(size, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "shard-scatter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private void addToRing(Shard shard) {
+        shards.add(shard);
+        for (int i = 0; i < VIRTUAL_NODES; i++)
+            ring.put(hash(shard.url + "#" + i), shard);
+    }
+
+    private void removeFromRing(Shard shard) {
+        shards.remove(shard);
+        for (int i = 0; i < VIRTUAL_NODES; i++)
+            ring.remove(hash(shard.url + "#" + i));
+    }
+
+    // FNV-1a followed by the murmur3 finalizer so that nearby strings land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    Shard shardFor(int hotelID) {
+        Map.Entry<Long, Shard> owner = ring.ceilingEntry(mix(hotelID));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @return the connection of the shard that owns the hotel
+     * @throws java.sql.SQLException when another router changed the ring
+     */
+    public Connection connectionFor(int hotelID) throws SQLException {
+        checkRing();
+        return shardFor(hotelID).connection;
+    }
+
+    /**
+     * @return the connection that global tables are read from and written to
+     */
+    public Connection globalConnection() {
+        return shards.get(0).connection;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * @return the connections of the shards, global shard first
+     */
+    public List<Connection> connections() {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (Shard shard : shards)
+            connections.add(shard.connection);
+        return connections;
+    }
+
+    /**
+     * @return the JDBC URLs of the shards, global shard first
+     */
+    public List<String> urls() {
+        List<String> urls = new ArrayList<String>();
+        for (Shard shard : shards)
+            urls.add(shard.url);
+        return urls;
+    }
+
+    /**
+     * Runs a query on every shard in parallel and concatenates the rows. The
+     * caller is responsible for re-applying any ORDER BY / LIMIT.
+     *
+     * @param query the input query string
+     * @return the rows of all shards
+     * @throws java.sql.SQLException when the query failed on any shard
+     */
+    public List<List<String>> scatter(final String query) throws SQLException {
+        List<Future<List<List<String>>>> futures = new ArrayList<Future<List<List<String>>>>();
+        // the shards are read under the time budget of the calling operation
+        final Deadline deadline = Deadline.current();
+        for (final Shard shard : shards) {
+            futures.add(pool.submit(new Callable<List<List<String>>>() {
+                public List<List<String>> call() throws SQLException {
+                    Deadline.join(deadline);
+                    try {
+                        return Hotel.executeQueryAndReturnResult(shard.connection, query);
+                    } finally {
+                        Deadline.join(null);
+                    }
+                }
+            }));
+        }
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (Future<List<List<String>>> future : futures)
+            result.addAll(await(future));
+        return result;
+    }
+
+    /**
+     * Same as scatter(query), keeping the typed result of every shard apart,
+     * in the order of connections(). The rows are read from a cursor in
+     * chunks, see Hotel.executeQueryAndReturnTableInChunks.
+     *
+     * @param query the input query string
+     * @return one table per shard
+     * @throws java.sql.SQLException when the query failed on any shard
+     */
+    public List<ResultTable> scatterTables(String query) throws SQLException {
+        return scatterTables(Collections.nCopies(shards.size(), query));
+    }
+
+    /**
+     * Same as scatterTables(query), with a query of its own for every shard.
+     *
+     * @param queries one query per shard, in the order of connections()
+     * @return one table per shard
+     * @throws java.sql.SQLException when a query failed on any shard
+     */
+    public List<ResultTable> scatterTables(List<String> queries) throws SQLException {
+        List<Future<ResultTable>> futures = new ArrayList<Future<ResultTable>>();
+        // the shards are read under the time budget of the calling operation
+        final Deadline deadline = Deadline.current();
+        for (int i = 0; i < shards.size(); i++) {
+            final Shard shard = shards.get(i);
+            final String query = queries.get(i);
+            futures.add(pool.submit(new Callable<ResultTable>() {
+                public ResultTable call() throws SQLException {
+                    Deadline.join(deadline);
+                    try {
+                        return Hotel.executeQueryAndReturnTableInChunks(shard.connection, query);
+                    } finally {
+                        Deadline.join(null);
+                    }
+                }
+            }));
+        }
+        List<ResultTable> result = new ArrayList<ResultTable>();
+        for (Future<ResultTable> future : futures)
+            result.add(await(future));
+        return result;
+    }
+
+    private static <T> T await(Future<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a shard");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause().toString());
+        }
+    }
+
+    /**
+     * Copies rows of a global table that were just written on the global shard
+     * to every other shard.
+     *
+     * @param table the global table
+     * @param where condition selecting the rows to copy
+     * @throws java.sql.SQLException when a shard could not be updated
+     */
+    public void replicateGlobal(String table, String where) throws SQLException {
+        for (int i = 1; i < shards.size(); i++)
+            copyRowsAsReplica(globalConnection(), shards.get(i).connection, table, where);
+    }
+
+    /**
+     * Brings every shard up to date with the global tables of the global shard.
+     * The global tables are append-only, so copying the rows past each shard's
+     * highest key is enough.
+     *
+     * @throws java.sql.SQLException when a shard could not be updated
+     */
+    public void replicateGlobalTables() throws SQLException {
+        for (int i = 1; i < shards.size(); i++) {
+            Connection replica = shards.get(i).connection;
+            for (String[] table : GLOBAL_TABLES) {
+                String max = Hotel.executeQueryAndReturnResult(replica,
+                        String.format("SELECT COALESCE(MAX(%s), -1) FROM %s", table[1], table[0])).get(0).get(0);
+                copyRowsAsReplica(globalConnection(), replica, table[0], table[1] + " > " + max);
+            }
+        }
+    }
+
+    /**
+     * Makes shard k of N hand out ids congruent to k modulo N, starting above the
+     * highest id on any shard, so rows keep their ids when hotels move.
+     *
+     * @throws java.sql.SQLException when a sequence could not be changed
+     */
+    public void interleaveSequences() throws SQLException {
+        int n = shards.size();
+        for (String[] sequence : SHARD_SEQUENCES) {
+            long max = 0;
+            for (List<String> row : scatter(String.format("SELECT COALESCE(MAX(%s), 0) FROM %s", sequence[1], sequence[0])))
+                max = Math.max(max, Long.parseLong(row.get(0)));
+            for (int k = 0; k < n; k++) {
+                Connection connection = shards.get(k).connection;
+                long start = (max / n + 1) * n + k;
+                for (int s = 2; s < sequence.length; s++) {
+                    List<List<String>> exists = Hotel.executeQueryAndReturnResult(connection,
+                            String.format("SELECT to_regclass('%s') IS NOT NULL", sequence[s]));
+                    if (!exists.get(0).get(0).startsWith("t"))
+                        continue;
+                    Hotel.executeUpdate(connection, String.format("ALTER SEQUENCE %s INCREMENT BY %d", sequence[s], n));
+                    // is_called = false makes start itself the next value; storing start - n as the last
+                    // value handed out fails on shard 0 of empty tables, as 0 is below the minimum of 1
+                    Hotel.executeQueryAndReturnResult(connection,
+                            String.format("SELECT setval('%s', %d, false)", sequence[s], start));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a shard to the ring and moves the hotels it now owns onto it.
+     *
+     * @param url JDBC URL of the new shard, with the schema already created
+     * @return the number of hotels moved
+     * @throws java.sql.SQLException when the shard cannot be reached or filled
+     */
+    public int addShard(String url) throws SQLException {
+        checkRing();
+        addToRing(new Shard(url, DriverManager.getConnection(url, user, passwd)));
+        publishRing();
+        resizePool();
+        replicateGlobalTables();
+        interleaveSequences();
+        return rebalance();
+    }
+
+    /**
+     * Takes a shard off the ring and moves its hotels to their new owners. The
+     * global shard cannot be removed.
+     *
+     * @return the number of hotels moved
+     * @throws java.sql.SQLException when the hotels could not be moved
+     */
+    public int removeShard(String url) throws SQLException {
+        Shard leaving = null;
+        for (int i = 1; i < shards.size(); i++)
+            if (shards.get(i).url.equals(url))
+                leaving = shards.get(i);
+        if (leaving == null)
+            throw new SQLException("No removable shard " + url);
+        checkRing();
+        removeFromRing(leaving);
+        publishRing();
+        int moved = moveMisplacedHotels(leaving);
+        leaving.connection.close();
+        resizePool();
+        return moved;
+    }
+
+    private void resizePool() {
+        pool.shutdown();
+        pool = newPool(shards.size());
+    }
+
+    /**
+     * Moves every hotel that is stored on a shard other than its ring owner.
+     *
+     * @return the number of hotels moved
+     * @throws java.sql.SQLException when a hotel could not be moved
+     */
+    public int rebalance() throws SQLException {
+        int moved = 0;
+        for (Shard shard : new ArrayList<Shard>(shards))
+            moved += moveMisplacedHotels(shard);
+        return moved;
+    }
+
+    private int moveMisplacedHotels(Shard from) throws SQLException {
+        int moved = 0;
+        for (List<String> row : Hotel.executeQueryAndReturnResult(from.connection, "SELECT hotelID FROM Hotel")) {
+            int hotelID = Integer.parseInt(row.get(0));
+            Shard owner = shardFor(hotelID);
+            if (owner != from) {
+                moveHotel(hotelID, from.connection, owner.connection);
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Copies a hotel with its rooms, price history, bookings, repairs and
+     * update log to the new shard, then deletes it from the old one. The copy
+     * runs with triggers and foreign key checks off (session_replication_role
+     * = replica) so that rows keep their ids, which needs a superuser.
+     * <p>
+     * The rows of the hotel on the old shard are locked (FOR UPDATE) before
+     * they are copied and stay locked until they are deleted, in the same
+     * transaction. The foreign keys of bookings, repairs, requests and the
+     * update log need those rows, so nothing can be written for the hotel in
+     * between; writes that waited fail once the hotel is gone. The copy is
+     * checked row count by row count before it commits.
+     * <p>
+     * The move is not atomic: copy and delete are two transactions on two
+     * databases. If the delete fails after the copy committed, the hotel is
+     * on both shards and both may take writes; moving it again then fails
+     * until one of the copies was removed by hand.
+     */
+    private void moveHotel(int hotelID, Connection from, Connection to) throws SQLException {
+        String hotel = "hotelID = " + hotelID;
+        String repairs = "repairID IN (SELECT repairID FROM RoomRepairs WHERE hotelID = " + hotelID + ")";
+        String[][] tables = {
+                {"Hotel", hotel}, {"Rooms", hotel}, {"RoomPriceHistory", hotel}, {"RoomBookings", hotel},
+                {"RoomRepairs", hotel}, {"RoomRepairRequests", repairs}, {"RoomUpdatesLog", hotel}
+        };
+
+        if (Hotel.executeQuery(to, "SELECT 1 FROM Hotel WHERE " + hotel) > 0)
+            throw new SQLException("Moving hotel " + hotelID + ": it is already on the target shard, left there "
+                    + "by a move whose delete failed; remove the stale copy by hand");
+
+        boolean copied = false;
+        from.setAutoCommit(false);
+        to.setAutoCommit(false);
+        try {
+            for (String[] table : tables)
+                Hotel.executeQuery(from, "SELECT 1 FROM " + table[0] + " WHERE " + table[1] + " FOR UPDATE");
+            Hotel.executeUpdate(to, "SET LOCAL session_replication_role = replica");
+            for (String[] table : tables)
+                copyRows(from, to, table[0], table[1]);
+            for (String[] table : tables) {
+                String count = "SELECT COUNT(*) FROM " + table[0] + " WHERE " + table[1];
+                long source = Hotel.executeQueryAndReturnTable(from, count).getLong(0, 0);
+                long target = Hotel.executeQueryAndReturnTable(to, count).getLong(0, 0);
+                if (source != target)
+                    throw new SQLException("Moving hotel " + hotelID + ": copied " + target + " of "
+                            + source + " rows of " + table[0]);
+            }
+            to.commit();
+            copied = true;
+
+            Hotel.executeUpdate(from, "DELETE FROM RoomRepairRequests WHERE " + repairs);
+            Hotel.executeUpdate(from, "DELETE FROM RoomRepairs WHERE " + hotel);
+            Hotel.executeUpdate(from, "DELETE FROM RoomBookings WHERE " + hotel);
+            Hotel.executeUpdate(from, "DELETE FROM RoomUpdatesLog WHERE " + hotel);
+            Hotel.executeUpdate(from, "DELETE FROM RoomPriceHistory WHERE " + hotel);
+            Hotel.executeUpdate(from, "DELETE FROM Rooms WHERE " + hotel);
+            Hotel.executeUpdate(from, "DELETE FROM Hotel WHERE " + hotel);
+            from.commit();
+        } catch (SQLException e) {
+            if (!copied)
+                to.rollback();
+            from.rollback();
+            if (copied)
+                throw new SQLException("Moving hotel " + hotelID + ": copied, but could not delete it from the "
+                        + "old shard, it is on both now: " + e.getMessage());
+            throw e;
+        } finally {
+            from.setAutoCommit(true);
+            to.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Copies the selected rows of a table as a single multi-row INSERT with the
+     * original column values. The caller switches the target to replica mode.
+     */
+    private static void copyRows(Connection from, Connection to, String table, String where) throws SQLException {
+        List<List<String>> rows = Hotel.executeQueryAndReturnResult(from,
+                "SELECT * FROM " + table + " WHERE " + where);
+        if (rows.isEmpty())
+            return;
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(table).append(" VALUES ");
+        for (int r = 0; r < rows.size(); r++) {
+            insert.append(r == 0 ? "(" : ", (");
+            List<String> row = rows.get(r);
+            for (int c = 0; c < row.size(); c++) {
+                if (c > 0)
+                    insert.append(", ");
+                String value = row.get(c);
+                insert.append(value == null ? "NULL" : "'" + value.replace("'", "''") + "'");
+            }
+            insert.append(')');
+        }
+        Hotel.executeUpdate(to, insert.toString());
+    }
+
+    /**
+     * Same as copyRows, outside of a transaction: the triggers of the target that
+     * hand out new ids are switched off for the duration of the copy.
+     */
+    private static void copyRowsAsReplica(Connection from, Connection to, String table, String where) throws SQLException {
+        Hotel.executeUpdate(to, "SET session_replication_role = replica");
+        try {
+            copyRows(from, to, table, where);
+        } finally {
+            Hotel.executeUpdate(to, "SET session_replication_role = DEFAULT");
+        }
+    }
+
+    /**
+     * Closes every shard connection.
+     */
+    public void close() {
+        pool.shutdown();
+        for (Shard shard : shards) {
+            try {
+                shard.connection.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }
+
+    /**
+     * Prepares a set of shards: copies the global tables from the first shard,
+     * interleaves the id sequences and moves every hotel to its owner.
+     *
+     * @param args the command line arguments <dbname> <port,port,...> <user>
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println(
+                    "Usage: " +
+                            "java [-classpath <classpath>] " +
+                            ShardRouter.class.getName() +
+                            " <dbname> <port,port,...> <user>");
+            return;
+        }//end if
+
+        ShardRouter router = null;
+        try {
+            Class.forName("org.postgresql.Driver");
+            List<String> urls = new ArrayList<String>();
+            for (String port : args[1].split(","))
+                urls.add("jdbc:postgresql://localhost:" + port.trim() + "/" + args[0]);
+            router = new ShardRouter(urls, args[2], "");
+            router.replicateGlobalTables();
+            router.interleaveSequences();
+            System.out.println("Moved " + router.rebalance() + " hotel(s) across " + router.size() + " shard(s).");
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        } finally {
+            if (router != null)
+                router.close();
+        }
+    }//end main
+}
@@ -0,0 +1,481 @@
+/*
+ * Snapshot Tool
+ * =============================
+ *
+ * Dumps every table of create_tables.sql into compressed, checksummed
+ * binary COPY segments and restores a database from them.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A snapshot is a directory with one or more gzip segments per table and a
+ * manifest that lists the segments with the CRC32 of each file and the
+ * values of all sequences. Every table is dumped by its own psql session,
+ * in parallel, all of them reading the same exported database snapshot, so
+ * the tables are consistent with each other.
+ * <p>
+ * The manifest also records the columns of every table. Before a restore
+ * drops anything, create_tables.sql is run in a scratch schema and its
+ * tables are compared with those columns, so that a snapshot of an older
+ * schema is refused instead of failing halfway through loading.
+ * <p>
+ * A restore recreates the tables, drops their keys and foreign keys, loads
+ * the tables level by level (a table only references tables of earlier
+ * levels) with the tables of a level in parallel, then adds the keys and
+ * foreign keys back, builds the indexes, installs the triggers if the
+ * snapshot had them and finally moves the sequences. Snapshots are taken
+ * per database; with shards, take one per shard.
+ */
+public class SnapshotTool {
+
+    // a table only references tables of earlier levels
+    static final String[][] LEVELS = {
+            {"Users", "MaintenanceCompany"},
+            {"Hotel"},
+            {"Rooms"},
+            {"RoomPriceHistory", "RoomBookings", "RoomRepairs", "RoomUpdatesLog"},
+            {"RoomRepairRequests"}
+    };
+
+    static final String SEQUENCES_QUERY =
+            "SELECT relname FROM pg_class WHERE relkind = 'S' AND relnamespace = 'public'::regnamespace ORDER BY relname";
+    static final String CONSTRAINTS_QUERY =
+            "SELECT conrelid::regclass, conname, pg_get_constraintdef(oid), contype FROM pg_constraint " +
+                    "WHERE contype IN ('p', 'u', 'f') AND connamespace = 'public'::regnamespace";
+
+    // the columns of a table with their types, in order
+    static final String SCHEMA_QUERY =
+            "SELECT string_agg(column_name || ' ' || data_type, ',' ORDER BY ordinal_position) " +
+                    "FROM information_schema.columns WHERE table_schema = '%s' AND table_name = lower('%s')";
+
+    static final String MANIFEST = "manifest.properties";
+
+    // where create_tables.sql is tried out before a restore
+    private static final String SCRATCH_SCHEMA = "snapshot_check";
+
+    // uncompressed bytes per segment file
+    private static final long SEGMENT_BYTES = Long.getLong("snapshot.segmentMB", 64) << 20;
+
+    // psql sessions running at the same time
+    private static final int PARALLEL = Integer.getInteger("snapshot.parallel", Runtime.getRuntime().availableProcessors());
+
+    // create_tables.sql, create_indexes.sql and triggers.sql
+    private static final File SQL_DIRECTORY = new File(System.getProperty("snapshot.sqlDir", "sql/src"));
+
+    private final String dbname;
+    private final String port;
+    private final String user;
+    private final File directory;
+    private final ExecutorService pool = Executors.newFixedThreadPool(PARALLEL);
+
+    public SnapshotTool(String dbname, String port, String user, File directory) {
+        this.dbname = dbname;
+        this.port = port;
+        this.user = user;
+        this.directory = directory;
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:postgresql://localhost:" + port + "/" + dbname, user, "");
+    }
+
+    /**
+     * Writes a snapshot of the database into the directory. The manifest is
+     * written last, so a directory without one holds no usable snapshot.
+     */
+    public void snapshot() throws Exception {
+        directory.mkdirs();
+        new File(directory, MANIFEST).delete();
+        Connection connection = connect();
+        connection.setAutoCommit(false);
+        try {
+            // the psql sessions join this transaction's snapshot while it stays open
+            Hotel.executeUpdate(connection, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            final String snapshotID = Hotel.executeQueryAndReturnTable(connection, "SELECT pg_export_snapshot()").getString(0, 0);
+
+            Properties manifest = new Properties();
+            manifest.setProperty("format", "1");
+            manifest.setProperty("server", Hotel.executeQueryAndReturnTable(connection, "SHOW server_version").getString(0, 0));
+            manifest.setProperty("triggers", String.valueOf(ChangeFeed.isInstalled(connection)));
+            List<String> tables = new ArrayList<String>();
+            for (String[] level : LEVELS)
+                tables.addAll(Arrays.asList(level));
+            manifest.setProperty("tables", join(tables));
+            for (String table : tables)
+                manifest.setProperty("schema." + table, schemaOf(connection, "public", table));
+
+            ResultTable sequences = Hotel.executeQueryAndReturnTable(connection, SEQUENCES_QUERY);
+            for (int r = 0; r < sequences.size(); r++) {
+                String sequence = sequences.getString(r, 0);
+                ResultTable value = Hotel.executeQueryAndReturnTable(connection,
+                        "SELECT last_value, is_called FROM " + sequence);
+                manifest.setProperty("sequence." + sequence, value.getString(0, 0) + "," + value.getString(0, 1));
+            }
+
+            Map<String, Future<Properties>> dumps = new LinkedHashMap<String, Future<Properties>>();
+            for (final String table : tables) {
+                dumps.put(table, pool.submit(new Callable<Properties>() {
+                    public Properties call() throws Exception {
+                        return dump(table, snapshotID);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<Properties>> dump : dumps.entrySet()) {
+                manifest.putAll(await(dump.getValue()));
+                System.out.println(String.format("%-20s %s segments", dump.getKey(),
+                        manifest.getProperty("table." + dump.getKey() + ".segments")));
+            }
+
+            Writer out = new FileWriter(new File(directory, MANIFEST));
+            try {
+                manifest.store(out, "Hotel snapshot of " + dbname);
+            } finally {
+                out.close();
+            }
+        } finally {
+            connection.rollback();
+            connection.close();
+        }
+    }
+
+    /*
+     * Copies one table out in binary, cut into gzip segments. Status messages of
+     * psql go to /dev/null, only the COPY data reaches its standard output.
+     */
+    private Properties dump(String table, String snapshotID) throws IOException, InterruptedException {
+        Process psql = Psql.run(dbname, port, user,
+                "\\o /dev/null",
+                "BEGIN ISOLATION LEVEL REPEATABLE READ",
+                "SET TRANSACTION SNAPSHOT '" + snapshotID + "'",
+                "\\copy " + table + " TO pstdout WITH (FORMAT binary)",
+                "COMMIT");
+        psql.getOutputStream().close();
+        InputStream in = new BufferedInputStream(psql.getInputStream(), 1 << 16);
+        Properties segments = new Properties();
+        byte[] buffer = new byte[1 << 16];
+        int segment = 0;
+        boolean done = false;
+        try {
+            while (!done) {
+                String name = String.format("%s.%04d.bin.gz", table, segment);
+                CRC32 crc = new CRC32();
+                OutputStream out = new GZIPOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(new File(directory, name)), 1 << 16), crc), 1 << 16);
+                long written = 0;
+                try {
+                    while (written < SEGMENT_BYTES) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, SEGMENT_BYTES - written));
+                        if (n < 0) {
+                            done = true;
+                            break;
+                        }
+                        out.write(buffer, 0, n);
+                        written += n;
+                    }
+                } finally {
+                    out.close();
+                }
+                segments.setProperty("table." + table + ".segment." + segment,
+                        name + "," + Long.toHexString(crc.getValue()) + "," + written);
+                segment++;
+            }
+        } finally {
+            in.close();
+        }
+        Psql.await(psql, "dumping " + table);
+        segments.setProperty("table." + table + ".segments", String.valueOf(segment));
+        return segments;
+    }
+
+    /**
+     * Replaces the tables of the database with those of the snapshot in the
+     * directory.
+     */
+    public void restore() throws Exception {
+        final Properties manifest = new Properties();
+        Reader manifestIn = new FileReader(new File(directory, MANIFEST));
+        try {
+            manifest.load(manifestIn);
+        } finally {
+            manifestIn.close();
+        }
+        verify(manifest);
+        checkSchema(manifest);
+
+        long start = System.nanoTime();
+        Psql.await(Psql.script(dbname, port, user, new File(SQL_DIRECTORY, "create_tables.sql")), "creating the tables");
+
+        // loading is faster without keys to maintain and foreign keys to check
+        List<String[]> keys = new ArrayList<String[]>();
+        List<String[]> foreignKeys = new ArrayList<String[]>();
+        Connection connection = connect();
+        try {
+            ResultTable constraints = Hotel.executeQueryAndReturnTable(connection, CONSTRAINTS_QUERY);
+            for (int r = 0; r < constraints.size(); r++) {
+                String[] constraint = {constraints.getString(r, 0), constraints.getString(r, 1), constraints.getString(r, 2)};
+                (constraints.getString(r, 3).equals("f") ? foreignKeys : keys).add(constraint);
+            }
+            for (String[] constraint : foreignKeys)
+                Hotel.executeUpdate(connection, "ALTER TABLE " + constraint[0] + " DROP CONSTRAINT " + constraint[1]);
+            for (String[] constraint : keys)
+                Hotel.executeUpdate(connection, "ALTER TABLE " + constraint[0] + " DROP CONSTRAINT " + constraint[1]);
+            // rows keep the values they had, e.g. RoomPriceHistory is not written again for every room
+            for (String[] level : LEVELS)
+                for (String table : level)
+                    Hotel.executeUpdate(connection, "ALTER TABLE " + table + " DISABLE TRIGGER USER");
+        } finally {
+            connection.close();
+        }
+        report("tables created", start);
+
+        for (String[] level : LEVELS) {
+            List<Future<Void>> loads = new ArrayList<Future<Void>>();
+            for (final String table : level) {
+                loads.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        load(manifest, table);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> load : loads)
+                await(load);
+            report("loaded " + join(Arrays.asList(level)), start);
+        }
+
+        // keys first, the foreign keys need them; NOT VALID + VALIDATE lets them check in parallel
+        alterInParallel(keys, "ALTER TABLE %1$s ADD CONSTRAINT %2$s %3$s");
+        report("keys added", start);
+        alterInParallel(foreignKeys, "ALTER TABLE %1$s ADD CONSTRAINT %2$s %3$s NOT VALID; ALTER TABLE %1$s VALIDATE CONSTRAINT %2$s");
+        report("foreign keys added", start);
+
+        Psql.await(Psql.script(dbname, port, user, new File(SQL_DIRECTORY, "create_indexes.sql")), "creating the indexes");
+        report("indexes created", start);
+
+        connection = connect();
+        try {
+            for (String[] level : LEVELS)
+                for (String table : level)
+                    Hotel.executeUpdate(connection, "ALTER TABLE " + table + " ENABLE TRIGGER USER");
+        } finally {
+            connection.close();
+        }
+        if (Boolean.parseBoolean(manifest.getProperty("triggers")))
+            Psql.await(Psql.script(dbname, port, user, new File(SQL_DIRECTORY, "triggers.sql")), "installing the triggers");
+
+        // after triggers.sql, which recreates the sequences it uses
+        connection = connect();
+        try {
+            for (String key : manifest.stringPropertyNames()) {
+                if (!key.startsWith("sequence."))
+                    continue;
+                String[] value = manifest.getProperty(key).split(",");
+                Hotel.executeQuery(connection, String.format(
+                        "SELECT setval(oid::regclass, %s, %s) FROM pg_class WHERE relname = '%s' AND relkind = 'S'",
+                        value[0], value[1].startsWith("t"), key.substring("sequence.".length())));
+            }
+            Hotel.executeUpdate(connection, "ANALYZE");
+        } finally {
+            connection.close();
+        }
+        report("restored", start);
+    }
+
+    /*
+     * Checks every segment file against the manifest before anything is dropped.
+     */
+    private void verify(Properties manifest) throws Exception {
+        List<Future<Void>> checks = new ArrayList<Future<Void>>();
+        for (final String table : manifest.getProperty("tables").split(",")) {
+            int segments = Integer.parseInt(manifest.getProperty("table." + table + ".segments"));
+            for (int i = 0; i < segments; i++) {
+                final String[] segment = manifest.getProperty("table." + table + ".segment." + i).split(",");
+                checks.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        CRC32 crc = new CRC32();
+                        InputStream in = new CheckedInputStream(new FileInputStream(new File(directory, segment[0])), crc);
+                        try {
+                            byte[] buffer = new byte[1 << 16];
+                            while (in.read(buffer) >= 0) ;
+                        } finally {
+                            in.close();
+                        }
+                        if (!Long.toHexString(crc.getValue()).equals(segment[1]))
+                            throw new IOException("Checksum mismatch in " + segment[0]);
+                        return null;
+                    }
+                }));
+            }
+        }
+        for (Future<Void> check : checks)
+            await(check);
+    }
+
+    /*
+     * Runs create_tables.sql in a scratch schema and compares its tables with
+     * those the snapshot was taken of, before anything is dropped.
+     */
+    private void checkSchema(Properties manifest) throws Exception {
+        Process psql = Psql.run(dbname, port, user,
+                "DROP SCHEMA IF EXISTS " + SCRATCH_SCHEMA + " CASCADE",
+                "CREATE SCHEMA " + SCRATCH_SCHEMA,
+                "SET search_path = " + SCRATCH_SCHEMA,
+                "\\i '" + new File(SQL_DIRECTORY, "create_tables.sql").getPath() + "'");
+        psql.getOutputStream().close();
+        Connection connection = connect();
+        try {
+            Psql.await(psql, "trying out create_tables.sql");
+            StringBuilder differences = new StringBuilder();
+            for (String table : manifest.getProperty("tables").split(",")) {
+                String recorded = manifest.getProperty("schema." + table);
+                String expected = schemaOf(connection, SCRATCH_SCHEMA, table);
+                if (recorded == null || !recorded.equals(expected))
+                    differences.append(String.format("%n  %s: snapshot has (%s), create_tables.sql has (%s)",
+                            table, recorded, expected));
+            }
+            if (differences.length() > 0)
+                throw new IOException("The snapshot was taken of another schema, nothing was restored:" + differences);
+        } finally {
+            try {
+                Hotel.executeUpdate(connection, "DROP SCHEMA IF EXISTS " + SCRATCH_SCHEMA + " CASCADE");
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    private static String schemaOf(Connection connection, String schema, String table) throws SQLException {
+        return Hotel.executeQueryAndReturnTable(connection, String.format(SCHEMA_QUERY, schema, table)).getString(0, 0);
+    }
+
+    private void load(Properties manifest, String table) throws IOException, InterruptedException {
+        Process psql = Psql.run(dbname, port, user, "\\copy " + table + " FROM pstdin WITH (FORMAT binary)");
+        OutputStream out = new BufferedOutputStream(psql.getOutputStream(), 1 << 16);
+        byte[] buffer = new byte[1 << 16];
+        try {
+            int segments = Integer.parseInt(manifest.getProperty("table." + table + ".segments"));
+            for (int i = 0; i < segments; i++) {
+                String name = manifest.getProperty("table." + table + ".segment." + i).split(",")[0];
+                InputStream in = new GZIPInputStream(new FileInputStream(new File(directory, name)), 1 << 16);
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0)
+                        out.write(buffer, 0, n);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            // leaving the COPY unfinished makes it fail instead of loading part of the table
+            psql.destroy();
+            throw e;
+        }
+        out.close();
+        Psql.await(psql, "loading " + table);
+    }
+
+    /*
+     * Runs the statements of each table in a session of its own, the tables in parallel.
+     */
+    private void alterInParallel(List<String[]> constraints, String statement) throws Exception {
+        Map<String, StringBuilder> byTable = new LinkedHashMap<String, StringBuilder>();
+        for (String[] constraint : constraints) {
+            if (!byTable.containsKey(constraint[0]))
+                byTable.put(constraint[0], new StringBuilder());
+            byTable.get(constraint[0]).append(String.format(statement, constraint[0], constraint[1], constraint[2])).append(";\n");
+        }
+        List<Future<Void>> alters = new ArrayList<Future<Void>>();
+        for (final Map.Entry<String, StringBuilder> table : byTable.entrySet()) {
+            alters.add(pool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    Psql.await(Psql.run(dbname, port, user, table.getValue().toString()), "altering " + table.getKey());
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> alter : alters)
+            await(alter);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values)
+            joined.append(joined.length() == 0 ? "" : ",").append(value);
+        return joined.toString();
+    }
+
+    private static void report(String step, long start) {
+        System.out.println(String.format("%-60s %8d ms", step, (System.nanoTime() - start) / 1000000));
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Usage: SnapshotTool &lt;snapshot|restore&gt; &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;directory&gt;
+     */
+    public static void main(String[] args) {
+        if (args.length != 5 || !(args[0].equals("snapshot") || args[0].equals("restore"))) {
+            System.err.println("Usage: java [-Dsnapshot.parallel=n] [-Dsnapshot.segmentMB=64] [-Dsnapshot.sqlDir=sql/src] "
+                    + "SnapshotTool <snapshot|restore> <dbname> <port> <user> <directory>");
+            return;
+        }
+        SnapshotTool tool = new SnapshotTool(args[1], args[2], args[3], new File(args[4]));
+        try {
+            Class.forName("org.postgresql.Driver");
+            if (args[0].equals("snapshot"))
+                tool.snapshot();
+            else
+                tool.restore();
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            tool.close();
+        }
+    }
+}
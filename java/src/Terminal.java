@@ -0,0 +1,118 @@
+/*
+ * Terminal
+ * =============================
+ *
+ * Keyboard and screen of the menu methods, per thread, so that HotelServer
+ * can run them for many sessions at once.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * The menu methods read their input with Hotel.in.readLine() and print to
+ * System.out and System.err. Once installed, a thread that has a request
+ * bound reads the arguments of the request instead and prints into the
+ * response; every other thread still uses the console.
+ */
+class Terminal {
+
+    private static final ThreadLocal<Terminal> BOUND = new ThreadLocal<Terminal>();
+
+    private static boolean installed = false;
+
+    private final Iterator<String> input;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private Terminal(String[] input) {
+        this.input = Arrays.asList(input).iterator();
+    }
+
+    /**
+     * Replaces Hotel.in, System.out and System.err by streams that follow the
+     * request bound to the calling thread.
+     */
+    static synchronized void install() {
+        if (installed)
+            return;
+        installed = true;
+        Hotel.in = new BufferedReader(new InputStreamReader(System.in)) {
+            public String readLine() throws IOException {
+                Terminal terminal = BOUND.get();
+                if (terminal == null)
+                    return super.readLine();
+                return terminal.input.hasNext() ? terminal.input.next() : null;
+            }
+        };
+        System.setOut(new PrintStream(new Screen(System.out), true));
+        System.setErr(new PrintStream(new Screen(System.err), true));
+    }
+
+    /**
+     * Binds a request to the calling thread.
+     *
+     * @param input the lines the menu method reads, in order
+     */
+    static void bind(String[] input) {
+        BOUND.set(new Terminal(input));
+    }
+
+    /**
+     * Unbinds the request of the calling thread.
+     *
+     * @return everything printed while it was bound
+     */
+    static String unbind() {
+        Terminal terminal = BOUND.get();
+        BOUND.remove();
+        System.out.flush();
+        System.err.flush();
+        return terminal == null ? "" : terminal.output.toString();
+    }
+
+    /**
+     * @return true when the calling thread serves a request, so nobody is
+     * there to read prompts
+     */
+    static boolean isBound() {
+        return BOUND.get() != null;
+    }
+
+    /*
+     * Writes into the response of the bound request, or to the console.
+     */
+    private static class Screen extends OutputStream {
+        private final OutputStream console;
+
+        Screen(OutputStream console) {
+            this.console = console;
+        }
+
+        private OutputStream target() {
+            Terminal terminal = BOUND.get();
+            return terminal == null ? console : terminal.output;
+        }
+
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            console.flush();
+        }
+    }
+}
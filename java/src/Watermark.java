@@ -0,0 +1,61 @@
+/*
+ * Watermark
+ * =============================
+ *
+ * Position of an incremental reader in a table whose rows get increasing
+ * ids, such as the bookings read by BookingAnalytics.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.TreeSet;
+
+/**
+ * An id is taken from its sequence before the transaction commits, so a row
+ * can show up after rows with higher ids. A reader therefore reads the ids
+ * from from() on, which includes a trailing window below the highest id it
+ * has seen, and skips the ids add() already reported. Rows that commit later
+ * than the window are missed. Every shard needs a watermark of its own, as
+ * the shards hand out interleaved ids at their own rate.
+ */
+class Watermark {
+
+    private final long window;
+    private final TreeSet<Long> seen = new TreeSet<Long>();
+    private long last = -1;
+
+    /**
+     * @param window ids below the highest one seen that are read again
+     */
+    Watermark(long window) {
+        this.window = window;
+    }
+
+    /**
+     * @return the id to read from, exclusive
+     */
+    long from() {
+        return last - window;
+    }
+
+    /**
+     * Records a row that was read.
+     *
+     * @return false when the row was read before
+     */
+    boolean add(long id) {
+        if (!seen.add(id))
+            return false;
+        last = Math.max(last, id);
+        return true;
+    }
+
+    /**
+     * Forgets the ids that fell out of the window; call after every read.
+     */
+    void prune() {
+        seen.headSet(last - window, true).clear();
+    }
+}
@@ -0,0 +1,8 @@
+#!/bin/bash
+# Usage: check_plans.sh <record|check|advise> [scale]
+# Explains every menu query against the current database. "record" stores a
+# baseline for the scale, "check" fails when a hot query got slower than it.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+java -Dadvisor.baselineDir=$DIR/../plans \
+     -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar \
+     QueryPlanAdvisor $USER"_DB" $PGPORT $USER ${1:-check} ${2:-default}
@@ -0,0 +1,25 @@
+#!/bin/bash
+# Usage: SHARD_PORTS="5433 5434 5435" create_shards.sh
+# Starts one local Postgres instance per port (unless it is already running),
+# creates the schema on each of them, loads the data into the first one and
+# lets ShardRouter move every hotel to the shard that owns it.
+# Run the application afterwards with the ports as a comma separated list.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SHARD_ROOT=${SHARD_ROOT:-/tmp/$USER/shards}
+PORTS=($SHARD_PORTS)
+
+for port in ${PORTS[@]}; do
+    if [ ! -d $SHARD_ROOT/$port ]; then
+        mkdir -p $SHARD_ROOT
+        initdb -D $SHARD_ROOT/$port > /dev/null
+    fi
+    pg_ctl -D $SHARD_ROOT/$port status > /dev/null || \
+        pg_ctl -D $SHARD_ROOT/$port -o "-p $port" -l $SHARD_ROOT/$port.log -w start
+    createdb -h localhost -p $port $USER"_DB" 2> /dev/null
+    psql -h localhost -p $port $USER"_DB" < $DIR/../src/create_tables.sql
+    psql -h localhost -p $port $USER"_DB" < $DIR/../src/create_indexes.sql
+done
+
+psql -h localhost -p ${PORTS[0]} $USER"_DB" < $DIR/../src/load_data.sql
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar \
+     ShardRouter $USER"_DB" $(IFS=,; echo "${PORTS[*]}") $USER
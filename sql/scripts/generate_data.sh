@@ -0,0 +1,11 @@
+#!/bin/bash
+# Usage: generate_data.sh [scale]
+# Recreates the tables and fills them with DataGenerator at the given scale
+# (1 = 100,000 users, 2,000 hotels and about 1,000,000 bookings), then builds
+# the indexes. Set GENERATOR_SEED for a different, equally reproducible data set.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
+java -Dgenerator.seed=${GENERATOR_SEED:-42} \
+     -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar \
+     DataGenerator ${1:-1} copy $USER"_DB" $PGPORT $USER || exit 1
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
@@ -0,0 +1,9 @@
+#!/bin/bash
+# Usage: restore.sh <directory>
+# Replaces the tables of the database with the snapshot in the directory:
+# loads them without keys in parallel, then adds the keys, indexes and
+# triggers back and moves the sequences.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+java -Dsnapshot.sqlDir=$DIR/../src \
+     -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar \
+     SnapshotTool restore $USER"_DB" $PGPORT $USER ${1:?directory}
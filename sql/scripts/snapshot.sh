@@ -0,0 +1,8 @@
+#!/bin/bash
+# Usage: snapshot.sh <directory>
+# Dumps every table into checksummed binary segments under the directory, all
+# tables in parallel from one consistent snapshot of the database.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+java -Dsnapshot.sqlDir=$DIR/../src \
+     -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar \
+     SnapshotTool snapshot $USER"_DB" $PGPORT $USER ${1:?directory}
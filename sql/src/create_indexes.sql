@@ -6,3 +6,18 @@ CREATE INDEX index_Hotel ON Hotel (hotelID, managerUserID);
 
 --Create a index on Rooms table as its hotelID and roomNumber are used frequently in the queries
 CREATE INDEX index_Rooms ON Rooms (hotelID, roomNumber);
+
+--Create a unique index on RoomBookings as a room can be booked only once per date. Every availability
+--check and the group booking look bookings up by these three columns, and the uniqueness makes two
+--concurrent bookings of the same room and date fail instead of both succeeding.
+CREATE UNIQUE INDEX index_RoomBookings ON RoomBookings (hotelID, roomNumber, bookingDate);
+
+--Create a index on RoomPriceHistory so that the price history finds the rows written since its last sync
+CREATE INDEX index_RoomPriceHistory_change ON RoomPriceHistory (changeID);
+
+--Create a index on RoomRepairs as every availability check looks for an open repair of the room
+CREATE INDEX index_RoomRepairs ON RoomRepairs (hotelID, roomNumber);
+
+--Create a partial index on RoomRepairRequests so that the repair dispatcher finds pending requests
+--without reading the (much larger) history of completed ones
+CREATE INDEX index_RoomRepairRequests_pending ON RoomRepairRequests (requestNumber) WHERE status = 'pending';
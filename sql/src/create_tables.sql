@@ -6,6 +6,7 @@ DROP TABLE IF EXISTS RoomBookings CASCADE;
 DROP TABLE IF EXISTS RoomRepairs CASCADE;
 DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
 DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS RoomPriceHistory CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50),
@@ -48,6 +49,7 @@ CREATE TABLE RoomBookings (
                     hotelID integer NOT NULL,
                     roomNumber integer NOT NULL, 
                     bookingDate date NOT NULL, 
+                    price integer,  ---the price charged, set by every booking insert and by loading
                     PRIMARY KEY(bookingID),
                     FOREIGN KEY(customerID) REFERENCES Users(userID),
                     FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
@@ -69,6 +71,10 @@ CREATE TABLE RoomRepairRequests (
                                requestNumber serial,
                                managerID integer NOT NULL, 
                	               repairID integer NOT NULL, 
+                               status char(10) NOT NULL DEFAULT 'pending', ---status can be 'pending', 'assigned' or 'completed'
+                               assignedTo char(30),  ---the dispatcher worker that claimed the request
+                               claimedOn timestamp,
+                               completedOn timestamp,
                                PRIMARY KEY(requestNumber), 
                                FOREIGN KEY(managerID) REFERENCES Users(userID), 
 			                   FOREIGN KEY(repairID) REFERENCES RoomRepairs(repairID)
@@ -86,6 +92,19 @@ CREATE TABLE RoomUpdatesLog (
                             FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
 );
 
+--The following table stores every price a room has had. A price is in effect from its effectiveOn date
+--until the next one; loading seeds it and the record_room_price trigger of triggers.sql writes the
+--changes. changeID grows with every write, so that readers can find the rows written since they last looked.
+CREATE TABLE RoomPriceHistory (
+                            hotelID integer NOT NULL,
+                            roomNumber integer NOT NULL,
+                            effectiveOn date NOT NULL,
+                            price integer NOT NULL,
+                            changeID bigserial NOT NULL,
+                            PRIMARY KEY(hotelID, roomNumber, effectiveOn),
+                            FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber) ON DELETE CASCADE
+);
+
 ---The following is the definition of a user-defined sql function for calculating the distance between two lat-long pairs.
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 RETURNS decimal AS $dist$
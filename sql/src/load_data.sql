@@ -10,25 +10,34 @@ WITH DELIMITER ',' CSV HEADER;
 COPY Rooms
 FROM '/extra/zhu052/project/data/rooms.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO RoomPriceHistory (hotelID, roomNumber, effectiveOn, price)
+SELECT hotelID, roomNumber, CURRENT_DATE, price FROM Rooms
+ON CONFLICT (hotelID, roomNumber, effectiveOn) DO NOTHING;
 
 COPY MaintenanceCompany
 FROM '/extra/zhu052/project/data/company.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY RoomBookings
+COPY RoomBookings (bookingID, customerID, hotelID, roomNumber, bookingDate)
 FROM '/extra/zhu052/project/data/bookings.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE RoomBookings_bookingID_seq RESTART 501; 
+--the loaded bookings are charged the price of their room
+UPDATE RoomBookings RB SET price = R.price
+FROM Rooms R WHERE R.hotelID = RB.hotelID AND R.roomNumber = RB.roomNumber AND RB.price IS NULL;
 
 COPY RoomRepairs
 FROM '/extra/zhu052/project/data/roomRepairs.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE roomRepairs_repairID_seq RESTART 11;
 
-COPY RoomRepairRequests
+COPY RoomRepairRequests (requestNumber, managerID, repairID)
 FROM '/extra/zhu052/project/data/roomRepairRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE roomRepairRequests_requestNumber_seq RESTART 11;
+--the fixture repairs are done, their rooms are in service
+UPDATE RoomRepairRequests RRR SET status = 'completed', completedOn = RR.repairDate + 1
+FROM RoomRepairs RR WHERE RR.repairID = RRR.repairID;
 
 COPY RoomUpdatesLog
 FROM '/extra/zhu052/project/data/roomUpdatesLog.csv'
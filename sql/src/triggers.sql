@@ -92,3 +92,106 @@ DROP TRIGGER IF EXISTS increment_requestNumber_trigger ON RoomRepairRequests;
 CREATE TRIGGER increment_requestNumber_trigger BEFORE INSERT
 ON RoomRepairRequests FOR EACH ROW
 EXECUTE PROCEDURE increment_requestNumber();
+
+
+--Change feed: record a "table,operation,hotelID[,roomNumber]" row in ChangeLog whenever a hotel
+--or room changes and wake up the listeners on the hotel_changes channel, so that every
+--running Hotel process can drop what it has cached for that key. The key goes into a table rather
+--than into the notification payload because older JDBC drivers cannot read payloads.
+--Notifications are only delivered when the transaction commits.
+CREATE TABLE IF NOT EXISTS ChangeLog(
+   changeID BIGSERIAL NOT NULL,
+   tableName TEXT NOT NULL,
+   operation CHAR(1) NOT NULL,
+   hotelID INTEGER NOT NULL,
+   roomNumber INTEGER,
+   changedOn TIMESTAMP NOT NULL DEFAULT now(),
+   PRIMARY KEY(changeID));
+
+CREATE OR REPLACE FUNCTION notify_hotel_change() RETURNS TRIGGER AS
+$BODY$
+DECLARE
+   changed RECORD;
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      changed := OLD;
+   ELSE
+      changed := NEW;
+   END IF;
+   INSERT INTO ChangeLog (tableName, operation, hotelID) VALUES (lower(TG_TABLE_NAME), left(TG_OP, 1), changed.hotelID);
+   PERFORM pg_notify('hotel_changes', '');
+   RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION notify_room_change() RETURNS TRIGGER AS
+$BODY$
+DECLARE
+   changed RECORD;
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      changed := OLD;
+   ELSE
+      changed := NEW;
+   END IF;
+   INSERT INTO ChangeLog (tableName, operation, hotelID, roomNumber)
+   VALUES (lower(TG_TABLE_NAME), left(TG_OP, 1), changed.hotelID, changed.roomNumber);
+   PERFORM pg_notify('hotel_changes', '');
+   RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS notify_hotel_change_trigger ON Hotel;
+CREATE TRIGGER notify_hotel_change_trigger AFTER INSERT OR UPDATE OR DELETE
+ON Hotel FOR EACH ROW
+EXECUTE PROCEDURE notify_hotel_change();
+
+DROP TRIGGER IF EXISTS notify_room_change_trigger ON Rooms;
+CREATE TRIGGER notify_room_change_trigger AFTER INSERT OR UPDATE OR DELETE
+ON Rooms FOR EACH ROW
+EXECUTE PROCEDURE notify_room_change();
+
+--No cache holds bookings or repairs, so only their deletions are logged, for the occupancy report to reload.
+DROP TRIGGER IF EXISTS notify_booking_change_trigger ON RoomBookings;
+CREATE TRIGGER notify_booking_change_trigger AFTER DELETE
+ON RoomBookings FOR EACH ROW
+EXECUTE PROCEDURE notify_room_change();
+
+DROP TRIGGER IF EXISTS notify_repair_change_trigger ON RoomRepairs;
+CREATE TRIGGER notify_repair_change_trigger AFTER DELETE
+ON RoomRepairs FOR EACH ROW
+EXECUTE PROCEDURE notify_room_change();
+
+---Records the price of a new room and every price change. A second change on the same day replaces the first.
+CREATE OR REPLACE FUNCTION record_room_price() RETURNS TRIGGER AS $price$
+BEGIN
+   IF TG_OP = 'INSERT' OR NEW.price IS DISTINCT FROM OLD.price THEN
+      INSERT INTO RoomPriceHistory (hotelID, roomNumber, effectiveOn, price)
+      VALUES (NEW.hotelID, NEW.roomNumber, CURRENT_DATE, NEW.price)
+      ON CONFLICT (hotelID, roomNumber, effectiveOn) DO UPDATE SET price = EXCLUDED.price, changeID = EXCLUDED.changeID;
+   END IF;
+   RETURN NULL;
+END;
+$price$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS record_room_price_trigger ON Rooms;
+CREATE TRIGGER record_room_price_trigger AFTER INSERT OR UPDATE OF price
+ON Rooms FOR EACH ROW
+EXECUTE PROCEDURE record_room_price();
+
+---Charges a booking the price its room has when the booking is made, for inserts that give no price.
+CREATE OR REPLACE FUNCTION charge_room_price() RETURNS TRIGGER AS $charge$
+BEGIN
+   IF NEW.price IS NULL THEN
+      SELECT price INTO NEW.price FROM Rooms WHERE hotelID = NEW.hotelID AND roomNumber = NEW.roomNumber;
+   END IF;
+   RETURN NEW;
+END;
+$charge$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS charge_room_price_trigger ON RoomBookings;
+CREATE TRIGGER charge_room_price_trigger BEFORE INSERT
+ON RoomBookings FOR EACH ROW
+EXECUTE PROCEDURE charge_room_price();